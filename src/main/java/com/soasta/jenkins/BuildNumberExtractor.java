@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2013, SOASTA, Inc.
+ * All Rights Reserved.
+ */
+package com.soasta.jenkins;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the {@code <meta name="buildnumber" content="...">} tag of the CloudTest
+ * landing page while reading it, without keeping or parsing the rest of the page.
+ * Reading stops at that tag, or at the end of the page's head.
+ */
+final class BuildNumberExtractor {
+    /**
+     * Longest tag we bother looking at; anything longer can't be the one we want.
+     */
+    private static final int MAX_TAG_LENGTH = 4096;
+
+    private static final Pattern ATTRIBUTE = Pattern.compile("([^\\s=/>]+)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s\"'>]+))");
+
+    private BuildNumberExtractor() {
+    }
+
+    /**
+     * Returns the build number, or {@code null} if the head of the page doesn't have one.
+     */
+    static String extract(Reader in) throws IOException {
+        StringBuilder tag = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c != '<') {
+                continue;
+            }
+
+            if (!readTag(in, tag)) {
+                return null;
+            }
+
+            if (isComment(tag)) {
+                continue;
+            }
+
+            String name = tagName(tag);
+            if (name.equals("meta")) {
+                String metaName = attribute(tag, "name");
+                if (metaName != null && metaName.equalsIgnoreCase("buildnumber")) {
+                    return attribute(tag, "content");
+                }
+            } else if (name.equals("script") || name.equals("style")) {
+                // Don't mistake their contents for tags.
+                if (!skipPast(in, "</" + name)) {
+                    return null;
+                }
+            } else if (name.equals("/head") || name.equals("body")) {
+                // The build number is always in the head.
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the rest of a tag (after the '&lt;') into the buffer, up to
+     * {@link #MAX_TAG_LENGTH} characters.  A comment is read up to its end,
+     * however long, but only its opening "!--" is kept.
+     * @return false if the end of the page was reached.
+     */
+    private static boolean readTag(Reader in, StringBuilder tag) throws IOException {
+        tag.setLength(0);
+        char quote = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = (char)c;
+            } else if (c == '>') {
+                return true;
+            }
+            if (tag.length() < MAX_TAG_LENGTH) {
+                tag.append((char)c);
+            }
+            if (isComment(tag)) {
+                // Comments may contain '>' and quotes that don't pair up.
+                return skipPast(in, "-->");
+            }
+        }
+        return false;
+    }
+
+    private static boolean isComment(StringBuilder tag) {
+        return tag.length() >= 3 && tag.charAt(0) == '!' && tag.charAt(1) == '-' && tag.charAt(2) == '-';
+    }
+
+    /**
+     * Skips past the next occurrence of the given (lower-case) text, ignoring case.
+     * @return false if the end of the page was reached first.
+     */
+    private static boolean skipPast(Reader in, String text) throws IOException {
+        int matched = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            char ch = Character.toLowerCase((char)c);
+            if (ch == text.charAt(matched)) {
+                if (++matched == text.length()) {
+                    return true;
+                }
+            } else {
+                matched = ch == text.charAt(0) ? 1 : 0;
+            }
+        }
+        return false;
+    }
+
+    private static String tagName(CharSequence tag) {
+        int end = 0;
+        while (end < tag.length() && !Character.isWhitespace(tag.charAt(end)) && tag.charAt(end) != '>'
+            && (tag.charAt(end) != '/' || end == 0)) {
+            end++;
+        }
+        return tag.subSequence(0, end).toString().toLowerCase(Locale.ENGLISH);
+    }
+
+    private static String attribute(CharSequence tag, String name) {
+        Matcher m = ATTRIBUTE.matcher(tag);
+        while (m.find()) {
+            if (m.group(1).equalsIgnoreCase(name)) {
+                for (int i = 2; i <= 4; i++) {
+                    if (m.group(i) != null) {
+                        return m.group(i);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
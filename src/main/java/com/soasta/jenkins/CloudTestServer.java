@@ -6,38 +6,60 @@ package com.soasta.jenkins;
 
 import hudson.CopyOnWrite;
 import hudson.Extension;
+import hudson.ProxyConfiguration;
+import hudson.Util;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
+import hudson.model.Label;
 import hudson.util.FormValidation;
 import hudson.util.Secret;
 import hudson.util.VersionNumber;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 
+import antlr.ANTLRException;
+
+import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.jsoup.Jsoup;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import com.soasta.jenkins.httpclient.GenericSelfClosingHttpClient;
 import com.soasta.jenkins.httpclient.HttpClientSettings;
+import com.soasta.jenkins.httpclient.HttpException;
+import com.soasta.jenkins.httpclient.SharedHttpClients;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.jsoup.nodes.Document;
-import org.jsoup.select.Elements;
-
 /**
  * Information about a specific CloudTest Server and access credential.
  *
@@ -62,6 +84,16 @@ public class CloudTestServer extends AbstractDescribableImpl<CloudTestServer> {
     
     private static final String REPOSITORY_SERVICE_BASE_URL = "/services/rest/RepositoryService/v1/Tokens";
 
+    /**
+     * How long a server's build number is used without checking it again, in milliseconds.
+     */
+    static long BUILD_NUMBER_TTL = Long.getLong(CloudTestServer.class.getName() + ".buildNumberTTL", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * How much of the landing page, after the build number, is read so the connection can be reused.
+     */
+    private static final long MAX_BUILD_NUMBER_PAGE_REMAINDER = 64 * 1024;
+
     private transient boolean generatedIdOrName;
     
     @DataBoundConstructor
@@ -200,9 +232,12 @@ public class CloudTestServer extends AbstractDescribableImpl<CloudTestServer> {
     }
 
     public FormValidation validate() throws IOException {
+      // A client just for this request: the server being validated may never be saved
+      // (and gets a new random ID every time), so it mustn't get a shared client.
+      GenericSelfClosingHttpClient client = null;
       try
       {
-        GenericSelfClosingHttpClient client = createClient();
+        client = new GenericSelfClosingHttpClient(createClientSettings());
 
         // to validate the credentials we will request a token from the repository. 
         
@@ -231,11 +266,22 @@ public class CloudTestServer extends AbstractDescribableImpl<CloudTestServer> {
         LOGGER.log(Level.SEVERE, "Failed to valdiate",  e);
         return FormValidation.error(e.getMessage());
       } 
+      finally
+      {
+        if (client != null)
+        {
+          client.close();
+        }
+      }
     }
 
     /**
      * Retrieves the build number of this CloudTest server.
      * Postcondition: The build number returned is never null.
+     *
+     * <p>
+     * The build number is cached for {@link #BUILD_NUMBER_TTL} milliseconds, and then
+     * revalidated with a conditional request.  Concurrent callers share a single request.
      */
     public VersionNumber getBuildNumber() throws IOException {
         if (url == null) {
@@ -243,35 +289,205 @@ public class CloudTestServer extends AbstractDescribableImpl<CloudTestServer> {
             // Nothing we can do.
             throw new IllegalStateException("No URL has been configured for this CloudTest server.");
         }
-     
 
-        GenericSelfClosingHttpClient client = createClient();
-        
-        HttpGet get = new HttpGet(url);
-        String responseBody = client.sendRequest(get);
-        
-        Document doc = Jsoup.parse(responseBody);
-        Elements elements = doc.select("meta[name=buildnumber]");
-        
-        if (elements != null && elements.size() >= 1)
-        {
-          String buildNumber = elements.get(0).attr("content");
-          
-          if (buildNumber != null)
-          {
-            return new VersionNumber(buildNumber);
-          }  
-        }
-        throw new Error("failed to find build number");
+        final CachedBuildNumber cached = CachedBuildNumber.forUrl(url);
+        synchronized (cached) {
+            if (cached.buildNumber != null && System.currentTimeMillis() - cached.checked < BUILD_NUMBER_TTL) {
+                return cached.buildNumber;
+            }
+
+            final HttpGet get = new HttpGet(url);
+            if (cached.buildNumber != null) {
+                // Only download the page again if it has changed.
+                if (cached.etag != null)
+                    get.addHeader(HttpHeaders.IF_NONE_MATCH, cached.etag);
+                if (cached.lastModified != null)
+                    get.addHeader(HttpHeaders.IF_MODIFIED_SINCE, cached.lastModified);
+            }
+
+            try {
+                VersionNumber buildNumber = sendRequest(get, new ResponseHandler<VersionNumber>() {
+                    public VersionNumber handleResponse(HttpResponse response) throws IOException {
+                        int statusCode = response.getStatusLine().getStatusCode();
+                        if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+                            return cached.buildNumber;
+                        }
+
+                        HttpEntity entity = response.getEntity();
+                        if (statusCode >= 300) {
+                            throw new HttpException(statusCode, entity == null ? null : EntityUtils.toString(entity));
+                        }
+
+                        if (entity == null) {
+                            throw new Error("failed to find build number");
+                        }
+
+                        // Only read as far as the build number.
+                        Charset charset = ContentType.getOrDefault(entity).getCharset();
+                        InputStream in = entity.getContent();
+                        String buildNumber = BuildNumberExtractor.extract(
+                            new InputStreamReader(in, charset == null ? Consts.UTF_8 : charset));
+                        if (buildNumber == null) {
+                            throw new Error("failed to find build number");
+                        }
+
+                        // If the rest of the page is short, read past it so the connection
+                        // can go back to the pool; otherwise, don't wait for it.
+                        if (!skipToEnd(in, MAX_BUILD_NUMBER_PAGE_REMAINDER)) {
+                            get.abort();
+                        }
+                        VersionNumber version = new VersionNumber(buildNumber);
+
+                        // Only now that the page has been read successfully can
+                        // later requests be made conditional on it.
+                        cached.etag = headerValue(response, HttpHeaders.ETAG);
+                        cached.lastModified = headerValue(response, HttpHeaders.LAST_MODIFIED);
+                        return version;
+                    }
+                });
+                cached.buildNumber = buildNumber;
+                cached.checked = System.currentTimeMillis();
+                return buildNumber;
+            } catch (IOException e) {
+                if (cached.buildNumber == null)
+                    throw e;
+                // The server is unreachable right now; keep using the last known build number.
+                LOGGER.log(Level.WARNING, "Failed to check the build number of " + url + "; using " + cached.buildNumber, e);
+                return cached.buildNumber;
+            } catch (HttpException e) {
+                if (cached.buildNumber == null)
+                    throw e;
+                LOGGER.log(Level.WARNING, "Failed to check the build number of " + url + "; using " + cached.buildNumber, e);
+                return cached.buildNumber;
+            }
+        }
     }
 
-    private GenericSelfClosingHttpClient createClient() throws IOException {
-        
-        return new GenericSelfClosingHttpClient(new HttpClientSettings()
-                                                .setKeyStore(HttpClientSettings.loadKeyStore(keyStoreLocation, Secret.toString(keyStorePassword)))
-                                                .setKeyStorePassword(keyStorePassword == null || keyStorePassword.getPlainText().isEmpty() ?  null : keyStorePassword.getPlainText())
-                                                .setUrl(url)
-                                                .setTrustSelfSigned(trustSelfSigned)); 
+    /**
+     * Reads and discards up to {@code limit} more bytes.
+     * @return true if the end of the stream was reached.
+     */
+    private static boolean skipToEnd(InputStream in, long limit) throws IOException {
+        byte[] buf = new byte[4096];
+        long remaining = limit;
+        while (remaining >= 0) {
+            int n = in.read(buf);
+            if (n < 0) {
+                return true;
+            }
+            remaining -= n;
+        }
+        return false;
+    }
+
+    /**
+     * Downloads a file from this server (e.g. an installer archive).
+     * @param path the path of the file, relative to the server URL.
+     */
+    void download(String path, final OutputStream out) throws IOException {
+        final HttpGet get = new HttpGet(url + path);
+        sendRequest(get, new ResponseHandler<Void>() {
+            public Void handleResponse(HttpResponse response) throws IOException {
+                if (response.getStatusLine().getStatusCode() >= 300) {
+                    throw new IOException("Failed to download " + get.getURI() + ": " + response.getStatusLine());
+                }
+                HttpEntity entity = response.getEntity();
+                if (entity == null) {
+                    throw new IOException("Failed to download " + get.getURI() + ": empty response");
+                }
+                entity.writeTo(out);
+                return null;
+            }
+        });
+    }
+
+    private static String headerValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * Sends a request with the pooled HTTP client shared by every request to this server.
+     * The client is rebuilt only when the connection settings (or the Jenkins proxy) change.
+     */
+    private <T> T sendRequest(HttpUriRequest request, ResponseHandler<? extends T> handler) throws IOException {
+        SharedHttpClients.Lease lease = SharedHttpClients.acquire(id, getClientConfiguration(), new SharedHttpClients.SettingsFactory() {
+            public HttpClientSettings create() throws IOException {
+                return createClientSettings();
+            }
+        });
+        try {
+            return lease.getClient().sendRequest(request, handler);
+        } finally {
+            lease.close();
+        }
+    }
+
+    private HttpClientSettings createClientSettings() throws IOException {
+        return new HttpClientSettings()
+            .setKeyStore(HttpClientSettings.loadKeyStore(keyStoreLocation, Secret.toString(keyStorePassword)))
+            .setKeyStorePassword(keyStorePassword == null || keyStorePassword.getPlainText().isEmpty() ?  null : keyStorePassword.getPlainText())
+            .setUrl(url)
+            .setTrustSelfSigned(trustSelfSigned);
+    }
+
+    /**
+     * Describes everything the HTTP client is built from, so that a change
+     * in any of it causes the shared client to be rebuilt.
+     */
+    private String getClientConfiguration() {
+        StringBuilder b = new StringBuilder();
+        b.append(url).append('|')
+         .append(keyStoreLocation).append('|')
+         .append(Util.getDigestOf(Secret.toString(keyStorePassword))).append('|')
+         .append(trustSelfSigned);
+        if (keyStoreLocation != null && !keyStoreLocation.isEmpty()) {
+            // Pick up a replaced keystore file, too.
+            b.append('|').append(new File(keyStoreLocation).lastModified());
+        }
+
+        Jenkins jenkins = Jenkins.getInstance();
+        ProxyConfiguration proxy = jenkins != null ? jenkins.proxy : null;
+        if (proxy != null) {
+            b.append('|').append(proxy.name)
+             .append('|').append(proxy.port)
+             .append('|').append(proxy.getUserName())
+             .append('|').append(Util.getDigestOf(Util.fixNull(proxy.getPassword())))
+             .append('|').append(proxy.noProxyHost);
+        }
+        return b.toString();
+    }
+
+    /**
+     * Returns the statistics of the connection pool used to talk to this server,
+     * or {@code null} if no request has been made yet.
+     */
+    public PoolStats getConnectionPoolStats() {
+        return SharedHttpClients.getPoolStats(id);
+    }
+
+    /**
+     * The last known build number of a CloudTest server URL, shared by every
+     * {@link CloudTestServer} instance (and every installer) that points to it.
+     */
+    private static final class CachedBuildNumber {
+        private static final ConcurrentMap<String, CachedBuildNumber> CACHE = new ConcurrentHashMap<String, CachedBuildNumber>();
+
+        private VersionNumber buildNumber;
+        private String etag;
+        private String lastModified;
+        private long checked;
+
+        static CachedBuildNumber forUrl(String url) {
+            CachedBuildNumber cached = CACHE.get(url);
+            if (cached == null) {
+                CachedBuildNumber created = new CachedBuildNumber();
+                cached = CACHE.putIfAbsent(url, created);
+                if (cached == null)
+                    cached = created;
+            }
+            return cached;
+        }
     }
 
     public static CloudTestServer getByURL(String url) {
@@ -306,6 +522,24 @@ public class CloudTestServer extends AbstractDescribableImpl<CloudTestServer> {
         boolean setUsername;
         boolean setApiToken;
 
+        /**
+         * Whether {@link ToolPrewarmer} installs the CloudTest tools on agents
+         * as soon as a server's build number changes.
+         */
+        private boolean prewarm;
+        /**
+         * Label expression of the agents to install on ({@code null} for all of them).
+         */
+        private String prewarmLabel;
+        private boolean prewarmMakeAppTouchTestable;
+        private boolean prewarmIOSAppInstaller;
+        /**
+         * How many installations can run at the same time.
+         */
+        private int prewarmThreads = DEFAULT_PREWARM_THREADS;
+
+        static final int DEFAULT_PREWARM_THREADS = 2;
+
         public DescriptorImpl() {
             load();
             if (servers == null) {
@@ -338,15 +572,63 @@ public class CloudTestServer extends AbstractDescribableImpl<CloudTestServer> {
 
         public void setServers(Collection<? extends CloudTestServer> servers) {
             this.servers = new ArrayList<CloudTestServer>(servers);
+
+            // Let go of the HTTP clients of any servers that were removed.
+            List<String> ids = new ArrayList<String>();
+            for (CloudTestServer s : this.servers) {
+                ids.add(s.getId());
+            }
+            SharedHttpClients.retainAll(ids);
+        }
+
+        public boolean isPrewarm() {
+            return prewarm;
+        }
+
+        public String getPrewarmLabel() {
+            return prewarmLabel;
+        }
+
+        public boolean isPrewarmMakeAppTouchTestable() {
+            return prewarmMakeAppTouchTestable;
+        }
+
+        public boolean isPrewarmIOSAppInstaller() {
+            return prewarmIOSAppInstaller;
+        }
+
+        public int getPrewarmThreads() {
+            return prewarmThreads > 0 ? prewarmThreads : DEFAULT_PREWARM_THREADS;
         }
 
         @Override
         public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
             setServers(req.bindJSONToList(CloudTestServer.class,json.get("servers")));
+
+            JSONObject p = json.optJSONObject("prewarm");
+            prewarm = p != null;
+            if (p != null) {
+                prewarmLabel = Util.fixEmptyAndTrim(p.optString("prewarmLabel"));
+                prewarmMakeAppTouchTestable = p.optBoolean("prewarmMakeAppTouchTestable");
+                prewarmIOSAppInstaller = p.optBoolean("prewarmIOSAppInstaller");
+                prewarmThreads = p.optInt("prewarmThreads", DEFAULT_PREWARM_THREADS);
+            }
             save();
             return true;
         }
 
+        public FormValidation doCheckPrewarmLabel(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.ok();
+            }
+            try {
+                Label.parseExpression(value);
+                return FormValidation.ok();
+            } catch (ANTLRException e) {
+                return FormValidation.error("Invalid label expression: " + e.getMessage());
+            }
+        }
+
         public FormValidation doValidate(@QueryParameter String url, @QueryParameter String username, @QueryParameter String password, @QueryParameter String id, @QueryParameter String name, @QueryParameter String apitoken,
           @QueryParameter String keyStoreLocation, @QueryParameter String keyStorePassword, @QueryParameter boolean trustSelfSigned) throws IOException {
             return new CloudTestServer(url,username,Secret.fromString(password), id, name, apitoken, keyStoreLocation, Secret.fromString(keyStorePassword), trustSelfSigned).validate();
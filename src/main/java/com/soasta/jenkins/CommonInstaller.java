@@ -4,53 +4,66 @@
  */
 package com.soasta.jenkins;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.net.URL;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
+import hudson.AbortException;
 import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Functions;
+import hudson.Util;
 import hudson.model.Node;
 import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.remoting.RemoteInputStream;
+import hudson.remoting.VirtualChannel;
 import hudson.tools.DownloadFromUrlInstaller;
 import hudson.tools.ToolInstallation;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import hudson.util.VersionNumber;
-
-/*******************************************************************************************************************************
- * START (Jenkins User-Agent change related imports)
- *******************************************************************************************************************************/
-import hudson.Functions;
-import hudson.ProxyConfiguration;
-import hudson.FilePath.FileCallable;
-import hudson.remoting.VirtualChannel;
-import hudson.util.IOUtils;
-
-import java.io.File;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URLConnection;
-import java.security.cert.X509Certificate;
-import java.util.Enumeration;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
-
-import jenkins.model.Jenkins;
+import jenkins.MasterToSlaveFileCallable;
 
 import org.apache.commons.io.input.CountingInputStream;
-import org.apache.tools.zip.ZipEntry;
-import org.apache.tools.zip.ZipFile;
 import org.jenkinsci.remoting.RoleChecker;
 
-import com.soasta.jenkins.httpclient.GenericSelfClosingHttpClient;
-import com.soasta.jenkins.httpclient.HttpClientSettings;
-/*******************************************************************************************************************************
- * END (Jenkins User-Agent change related imports)
- *******************************************************************************************************************************/
-
 public class CommonInstaller extends DownloadFromUrlInstaller
 {
   private final CloudTestServer server;
@@ -97,51 +110,254 @@ public class CommonInstaller extends DownloadFromUrlInstaller
     return installerType;
   }
   
-  /*******************************************************************************************************************************
-   * START (Jenkins User-Agent related code changes)
-   *******************************************************************************************************************************/
-  /**
-   * The following code changes the file download request for installer files 
-   * (iOSAppInstaller, MATT, or SCommand) to have a User-Agent of 
-   * "Jenkins/<Jenkins version #>" instead of "Java/<Java version #>".
-   * This allow this call to correctly identify itself as coming from the Jenkins 
-   * plugin.
-   * 
-   * WARNING: This code was taken from Jenkins (1.544) src, FilePath.java
-   * and DownloadFromUrlInstaller.java.
-   * A few changes were made to logging and to make the code work.  May be
-   * vulnerable to Jenkins base code changes in the future.  Issues related
-   * to this may crop up in the future concerning any type of installer 
-   * downloading because of this.  This addition is because of Bug 71924.
-   * 
-   * TODO: Remove code when Jenkins will properly identify itself in the 
-   * User-Agent.  All the code below is tied to being able to add to the
-   * URLConnection that the User-Agent is, instead, "Jenkins/..." and not
-   * "Java/...".
-   */
   public FilePath performInstallation(ToolInstallation tool, Node node, TaskListener log) throws IOException, InterruptedException {
-    try
-    {
-      return super.performInstallation(tool, node, log);
+    // Only one build at a time installs a tool on a node (otherwise they all
+    // download it and unpack it over each other).  The others wait, and then
+    // find it up to date.
+    ReentrantLock lock = getInstallLock(node.getNodeName() + '\n' + id);
+    if (!lock.tryLock()) {
+      log.getLogger().println("Waiting for another build to finish installing " + id + " on " + node.getDisplayName());
+      lock.lockInterruptibly();
     }
-    catch (IOException e)
-    {
+    try {
+      // Also lock the installation on the node itself, in case it is shared
+      // (e.g. with another Jenkins).
       FilePath expected = preferredLocation(tool, node);
-      Installable inst = getInstallable();
-      
-      if(installIfNecessaryFrom(expected, new URL(inst.url), log, "Unpacking " + inst.url + " to " + expected + " on " + node.getDisplayName())) {
-        expected.child(".timestamp").delete(); // we don't use the timestamp
-        FilePath base = findPullUpDirectory(expected);
-        if(base!=null && base!=expected)
-            base.moveAllChildrenTo(expected);
-        // leave a record for the next up-to-date check
-        expected.child(".installedFrom").write(inst.url,"UTF-8");
-        expected.act(new ChmodRecAPlusX());
+      FilePath lockFile = expected.sibling(expected.getName() + ".lock");
+      if (!lockFile.act(new AcquireFileLock(0))) {
+        log.getLogger().println("Waiting for the lock on " + lockFile.getRemote() + " on " + node.getDisplayName()
+            + ", held by another process installing " + id);
+        if (!lockFile.act(new AcquireFileLock(FILE_LOCK_TIMEOUT))) {
+          throw new AbortException("Timed out after " + TimeUnit.MILLISECONDS.toSeconds(FILE_LOCK_TIMEOUT)
+              + " seconds waiting for the lock on " + lockFile.getRemote() + " on " + node.getDisplayName()
+              + ". If no other installation is running, whatever holds it has stopped; restarting the agent releases the lock.");
+        }
       }
-      
-      return expected;
+      try {
+        return install(tool, node, log);
+      } finally {
+        lockFile.act(new ReleaseFileLock());
+      }
+    } finally {
+      lock.unlock();
     }
   }
+
+  private static ReentrantLock getInstallLock(String key) {
+    ReentrantLock lock = INSTALL_LOCKS.get(key);
+    if (lock == null) {
+      ReentrantLock newLock = new ReentrantLock();
+      lock = INSTALL_LOCKS.putIfAbsent(key, newLock);
+      if (lock == null) {
+        lock = newLock;
+      }
+    }
+    return lock;
+  }
+
+  /**
+   * Node name and installer ID to the lock held while installing.
+   */
+  private static final ConcurrentMap<String,ReentrantLock> INSTALL_LOCKS = new ConcurrentHashMap<String,ReentrantLock>();
+
+  /**
+   * How long to wait for another process to finish installing on a node, in milliseconds.
+   */
+  static long FILE_LOCK_TIMEOUT = Long.getLong(CommonInstaller.class.getName() + ".fileLockTimeout", TimeUnit.MINUTES.toMillis(15));
+
+  /**
+   * Locks a file on the node (creating it if necessary), waiting up to a timeout for
+   * any other process holding it.  The lock is held until {@link ReleaseFileLock},
+   * or until the connection to the controller that took it is closed (so that a
+   * connection lost in between can't leave it locked for good).
+   */
+  static final class AcquireFileLock extends MasterToSlaveFileCallable<Boolean> {
+    private static final long serialVersionUID = 1L;
+
+    private final long timeout;
+
+    /**
+     * @param timeout how long to wait for the lock, in milliseconds (0 to just try once).
+     */
+    AcquireFileLock(long timeout) {
+      this.timeout = timeout;
+    }
+
+    /**
+     * @return whether the lock was taken.
+     */
+    public Boolean invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+      File parent = f.getParentFile();
+      if (parent != null) {
+        parent.mkdirs();
+      }
+      long deadline = System.currentTimeMillis() + timeout;
+      RandomAccessFile file = new RandomAccessFile(f, "rw");
+      try {
+        while (true) {
+          FileLock lock;
+          try {
+            lock = file.getChannel().tryLock();
+          } catch (OverlappingFileLockException e) {
+            // Held by this JVM (e.g. by a different controller connected to this node).
+            lock = null;
+          }
+          if (lock != null) {
+            hold(f.getAbsolutePath(), lock);
+            file = null;
+            return true;
+          }
+          if (System.currentTimeMillis() >= deadline) {
+            return false;
+          }
+          Thread.sleep(Math.min(1000, Math.max(deadline - System.currentTimeMillis(), 1)));
+        }
+      } finally {
+        if (file != null) {
+          file.close();
+        }
+      }
+    }
+  }
+
+  static final class ReleaseFileLock extends MasterToSlaveFileCallable<Void> {
+    private static final long serialVersionUID = 1L;
+
+    public Void invoke(File f, VirtualChannel channel) throws IOException {
+      HeldFileLock held;
+      synchronized (HELD_FILE_LOCKS) {
+        held = HELD_FILE_LOCKS.remove(f.getAbsolutePath());
+      }
+      if (held != null) {
+        held.release();
+      }
+      return null;
+    }
+  }
+
+  /**
+   * A file lock taken by {@link AcquireFileLock}, released when the connection it was
+   * taken over closes if {@link ReleaseFileLock} doesn't get to it first.
+   */
+  private static final class HeldFileLock extends Channel.Listener {
+    private final String path;
+    private final FileLock lock;
+    private final Channel channel;
+
+    HeldFileLock(String path, FileLock lock, Channel channel) {
+      this.path = path;
+      this.lock = lock;
+      this.channel = channel;
+    }
+
+    @Override
+    public void onClosed(Channel c, IOException cause) {
+      synchronized (HELD_FILE_LOCKS) {
+        if (HELD_FILE_LOCKS.get(path) != this) {
+          return;
+        }
+        HELD_FILE_LOCKS.remove(path);
+      }
+      LOGGER.warning("Releasing the lock on " + path + ", since the connection to the controller holding it was closed");
+      try {
+        release();
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to release the lock on " + path, e);
+      }
+    }
+
+    void release() throws IOException {
+      if (channel != null) {
+        channel.removeListener(this);
+      }
+      try {
+        lock.release();
+      } finally {
+        lock.channel().close();
+      }
+    }
+  }
+
+  private static void hold(String path, FileLock lock) {
+    // null when running on the controller itself, where the release always follows.
+    Channel channel = Channel.current();
+    HeldFileLock held = new HeldFileLock(path, lock, channel);
+    synchronized (HELD_FILE_LOCKS) {
+      HELD_FILE_LOCKS.put(path, held);
+    }
+    if (channel != null) {
+      channel.addListener(held);
+      if (channel.isClosingOrClosed()) {
+        // Closed before the listener was added, so it won't be called.
+        held.onClosed(channel, null);
+      }
+    }
+  }
+
+  /**
+   * The file locks held on this node (by {@link AcquireFileLock}), by path.
+   */
+  private static final Map<String,HeldFileLock> HELD_FILE_LOCKS = new HashMap<String,HeldFileLock>();
+
+  /**
+   * Installs the tool on the node from the archive in the controller's {@link InstallerCache}
+   * (so the node itself never downloads from the CloudTest server), unless it is already
+   * installed from the same archive.
+   */
+  private FilePath install(ToolInstallation tool, Node node, TaskListener log) throws IOException, InterruptedException {
+    FilePath expected = preferredLocation(tool, node);
+    Installable inst = getInstallable();
+
+    InstallerCache.Archive archive;
+    try {
+      archive = InstallerCache.get(server, installerType, buildNumber);
+    } catch (IOException e) {
+      if (expected.child(".installedFrom").exists()) {
+        // Cannot download it now, so assume whatever was last unpacked is still OK.
+        LOGGER.log(Level.INFO, "Skipping installation of " + inst.url + " to " + expected.getRemote() + ": " + e);
+        return expected;
+      }
+      throw new IOException("Failed to download " + inst.url, e);
+    }
+
+    FilePath installedHash = expected.child(".installedHash");
+    if (installedHash.exists() && installedHash.readToString().trim().equals(archive.getHash())) {
+      return expected;   // already up to date
+    }
+
+    log.getLogger().println("Unpacking " + inst.url + " to " + expected + " on " + node.getDisplayName());
+    long start = System.currentTimeMillis();
+    if (expected.exists()) {
+      expected.deleteContents();
+    } else {
+      expected.mkdirs();
+    }
+
+    // Stream the archive to the node.
+    Unpacked unpacked;
+    InputStream in = new FileInputStream(archive.getFile());
+    try {
+      unpacked = expected.act(new Unpack(new RemoteInputStream(in, RemoteInputStream.Flag.GREEDY), archive.getHash(), UNPACK_THREADS));
+    } catch (IOException e) {
+      throw new IOException("Failed to install " + inst.url + " to " + expected.getRemote(), e);
+    } finally {
+      in.close();
+    }
+
+    FilePath base = findPullUpDirectory(expected);
+    if (base != null && base != expected)
+      base.moveAllChildrenTo(expected);
+    // leave a record for the next up-to-date check
+    expected.child(".installedFrom").write(inst.url, "UTF-8");
+    installedHash.write(archive.getHash(), "UTF-8");
+    if (!unpacked.modesApplied) {
+      expected.act(new ChmodRecAPlusX());
+    }
+
+    log.getLogger().println(String.format("Unpacked %d files (%d bytes) in %d ms; installed in %d ms",
+        unpacked.files, unpacked.bytes, unpacked.millis, System.currentTimeMillis() - start));
+    return expected;
+  }
   
   /**
    * Sets execute permission on all files, since unzip etc. might not do this.
@@ -175,210 +391,332 @@ public class CommonInstaller extends DownloadFromUrlInstaller
   }
   
   /**
-   * (From FilePath.java)
-   * Given a zip file, extracts it to the given target directory, if necessary.
-   *
-   * <p>
-   * This method is a convenience method designed for installing a binary package to a location
-   * that supports upgrade and downgrade. Specifically,
-   *
-   * <ul>
-   * <li>If the target directory doesn't exist {@linkplain #mkdirs() it'll be created}.
-   * <li>If the timestamp left in the directory doesn't match with the timestamp of the current archive file,
-   *     the directory contents will be discarded and the archive file will be re-extracted.
-   * <li>If the connection is refused but the target directory already exists, it is left alone.
-   * </ul>
-   *
-   * @param archive
-   *      The resource that represents the zip file. This URL must support the "Last-Modified" header.
-   *      (Most common usage is to get this from {@link ClassLoader#getResource(String)})
-   * @param listener
-   *      If non-null, a message will be printed to this listener once this method decides to
-   *      extract an archive.
-   * @return
-   *      true if the archive was extracted. false if the extraction was skipped because the target directory
-   *      was considered up to date.
-   * @since 1.299
+   * Number of threads writing out the entries of an installer archive on the node.
+   * Extraction is mostly waiting on the file system, so more threads than cores can help.
    */
-   private boolean installIfNecessaryFrom(FilePath expected, URL archive, TaskListener listener, String message) throws IOException, InterruptedException {
-      try {
-          FilePath timestamp = expected.child(".timestamp");
-          URLConnection con;
-          try {
-              
-              con = ProxyConfiguration.open(archive);
-              // Jira Bug JENKINS-21033: Changing the User-Agent from "Java/<Java version #>" to "Jenkins/<Jenkins version #>"
-              con.setRequestProperty("User-Agent", "Jenkins/" + Jenkins.getVersion().toString());
-              
-              // requested connection is HTTPS. 
-              if (con instanceof HttpsURLConnection)
-              {
-                HttpsURLConnection https = ((HttpsURLConnection) con);
-                CloudTestServer server = getServer();
-                String password = server.getKeyStorePassword().getPlainText() == null || server.getKeyStorePassword().getPlainText().isEmpty() ? null : server.getKeyStorePassword().getPlainText();
-                HttpClientSettings settings = new HttpClientSettings()
-                                              .setKeyStore(HttpClientSettings.loadKeyStore(server.getKeyStoreLocation(), password))
-                                              .setKeyStorePassword(server.getKeyStorePassword().getPlainText())
-                                              .setTrustSelfSigned(server.isTrustSelfSigned());
-                
-                KeyManager[] keyManagers = GenericSelfClosingHttpClient.getKeyManagers(settings);
-                TrustManager[] trustManagers = null;
-                if (server.isTrustSelfSigned())
-                {
-                  trustManagers = GenericSelfClosingHttpClient.getTrustAllSelfSigned();
-                }
-                
-                SSLContext sslContext = null;
-                
-                try
-                {
-                  sslContext = SSLContext.getInstance("TLS");
-                  sslContext.init(keyManagers, trustManagers, new java.security.SecureRandom());
-                  https.setSSLSocketFactory(sslContext.getSocketFactory());
-                }
-                catch (Exception e)
-                {
-                  LOGGER.log(Level.SEVERE, "Error setting ssl context", e);
-                }
-              }
-              LOGGER.log(Level.INFO, "Setting User-Agent for download to " + con.getRequestProperty("User-Agent") +
-                " for file " + archive.getPath());
-              if (timestamp.exists()) {
-                  con.setIfModifiedSince(timestamp.lastModified());
-              }
-              con.connect();
-          } catch (IOException x) {
-              if (expected.exists()) {
-                  // Cannot connect now, so assume whatever was last unpacked is still OK.
-                  if (listener != null) {
-                      LOGGER.log(Level.INFO, "Skipping installation of " + archive + " to " + expected.getRemote() + ": " + x);
-                  }
-                  return false;
-              } else {
-                  throw x;
-              }
-          }
-
-          LOGGER.log(Level.INFO, "Connection response code is: " + ((HttpURLConnection)con).getResponseCode());
-          if (con instanceof HttpURLConnection
-                  && ((HttpURLConnection)con).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
-              return false;
-          }
-          
-          long sourceTimestamp = con.getLastModified();
-
-          if(expected.exists()) {
-              LOGGER.log(Level.INFO, "Not creating a new " + expected.getRemote() + " as one already exists.");
-              if(timestamp.exists() && sourceTimestamp ==timestamp.lastModified())
-                  return false;   // already up to date
-              expected.deleteContents();
-          } else {
-            expected.mkdirs();
-          }
+  static int UNPACK_THREADS = Integer.getInteger(CommonInstaller.class.getName() + ".unpackThreads", 8);
 
-          if(listener!=null)
-            LOGGER.log(Level.INFO, message);
+  /**
+   * What {@link Unpack} did, to show in the build log.
+   */
+  static final class Unpacked implements Serializable {
+    private static final long serialVersionUID = 1L;
 
-          if (expected.isRemote()) {
-            LOGGER.log(Level.INFO, "Treating this as a remote request.");
-            // First try to download from the slave machine.
-            try {
-                expected.act(new Unpack(archive));
-                timestamp.touch(sourceTimestamp);
-                return true;
-            } catch (IOException x) {
-                if (listener != null) {
-                    listener.error("Failed to download " + archive + " because of " + x.getLocalizedMessage() + "; will retry.");
-                }
-            }
-          }
-          
-          expected.act(new Unpack(archive));
-          timestamp.touch(sourceTimestamp);
-          return true;
-      } catch (IOException e) {
-          throw new IOException("Failed to install "+archive+" to "+ expected.getRemote(),e);
-      }
+    int files;
+    long bytes;
+    long millis;
+    /**
+     * Whether every file was made executable, with the mode recorded in the archive if any
+     * (if not, nothing is executable yet).
+     */
+    boolean modesApplied;
   }
-  
-  private static final class Unpack implements FileCallable<Void> {
+
+  /**
+   * Unzips an archive (streamed from the controller) into a directory, as it arrives.
+   * The archive is inflated on one thread, while the files are written (and their modes set)
+   * by a pool of threads.
+   */
+  static final class Unpack implements FileCallable<Unpacked> {
     private static final long serialVersionUID = 1L;
+
+    /**
+     * How much of the end of the archive is kept while unzipping, to read the
+     * Unix modes from the central directory (which comes after all the entries).
+     */
+    private static final int MAX_CENTRAL_DIRECTORY = 4 * 1024 * 1024;
+
+    /**
+     * Entries up to this size are handed to the pool to write;
+     * larger ones are written as they are inflated.
+     */
+    private static final int MAX_BUFFERED_ENTRY = 1024 * 1024;
+
+    /**
+     * How many bytes of inflated entries can be waiting to be written.
+     */
+    private static final int MAX_PENDING = 64 * 1024 * 1024;
+
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR = 0x07064b50;
+    private static final int CENTRAL_DIRECTORY_ENTRY = 0x02014b50;
+    private static final int PLATFORM_UNIX = 3;
     
-    private final URL archive;
-    Unpack(URL archive) {
+    private final RemoteInputStream archive;
+    private final String hash;
+    private final int threads;
+
+    /**
+     * @param hash the SHA-256 hash of the archive, to verify it against.
+     */
+    Unpack(RemoteInputStream archive, String hash, int threads) {
         this.archive = archive;
+        this.hash = hash;
+        this.threads = threads;
     }
-    public Void invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
-        URLConnection con = archive.openConnection();
-        // Jira Bug JENKINS-21033: Changing the User-Agent from "Java/<Java version #>" to "Jenkins/<Jenkins version #>"
-        con.setRequestProperty("User-Agent", "Jenkins/" + Jenkins.getVersion().toString());
-        InputStream in = con.getInputStream();
+    public Unpacked invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        MessageDigest digest;
         try {
-            CountingInputStream cis = new CountingInputStream(in);
-            try {
-                LOGGER.log(Level.INFO, "Invoke called for Unpack class to unpack to " + dir.getAbsolutePath());
-                if (archive.toExternalForm().endsWith(".zip")) {
-                  LOGGER.log(Level.INFO, "Archive unzipped as it ends with '.zip'.  Starting unzip.");
-                  unzip(dir, cis);
-                }
-            } catch (IOException x) {
-                throw new IOException(String.format("Failed to unpack %s (%d bytes read)", archive, cis.getByteCount()), x);
-            }
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        Unpacked unpacked = new Unpacked();
+        CountingInputStream cis = new CountingInputStream(archive);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads),
+            new NamingThreadFactory(new DaemonThreadFactory(), "CloudTest installer unpacker"));
+        try {
+            LOGGER.log(Level.INFO, "Invoke called for Unpack class to unpack to " + dir.getAbsolutePath());
+            unzip(dir, new DigestInputStream(cis, digest), executor, unpacked);
+        } catch (IOException x) {
+            throw new IOException(String.format("Failed to unpack (%d bytes read)", cis.getByteCount()), x);
         } finally {
-            in.close();
+            executor.shutdownNow();
+            archive.close();
         }
-        return null;
-    }
-    
-    private static void unzip(File dir, InputStream in) throws IOException {
-      File tmpFile = File.createTempFile("tmpzip", null); // uses java.io.tmpdir
-      try {
-          IOUtils.copy(in, tmpFile);
-          unzip(dir,tmpFile);
-      }
-      finally {
-          tmpFile.delete();
-      }
+
+        String actual = Util.toHexString(digest.digest());
+        if (!actual.equals(hash)) {
+            throw new IOException("The archive is corrupt: its SHA-256 is " + actual + " instead of " + hash);
+        }
+        unpacked.millis = System.currentTimeMillis() - start;
+        return unpacked;
     }
     
-    static private void unzip(File dir, File zipFile) throws IOException {
+    static void unzip(File dir, InputStream in, ExecutorService executor, Unpacked unpacked) throws IOException, InterruptedException {
         dir = dir.getAbsoluteFile();    // without absolutization, getParentFile below seems to fail
-        ZipFile zip = new ZipFile(zipFile);
-        @SuppressWarnings("unchecked")
-        Enumeration<ZipEntry> entries = zip.getEntries();
+        String root = dir.getCanonicalPath() + File.separator;
+        TailInputStream tail = new TailInputStream(in, MAX_CENTRAL_DIRECTORY);
+        ZipInputStream zip = new ZipInputStream(tail);
+        Map<String,File> files = new HashMap<String,File>();
+        Set<File> dirs = new HashSet<File>();
+        final Semaphore pending = new Semaphore(MAX_PENDING);
+        List<Future<?>> writes = new ArrayList<Future<?>>();
 
-        try {
-            while (entries.hasMoreElements()) {
-                ZipEntry e = entries.nextElement();
-                File f = new File(dir, e.getName());
-                if (e.isDirectory()) {
-                    f.mkdirs();
-                } else {
-                    File p = f.getParentFile();
-                    if (p != null) {
-                        p.mkdirs();
-                    }
-                    InputStream input = zip.getInputStream(e);
+        ZipEntry e;
+        while ((e = zip.getNextEntry()) != null) {
+            final File f = new File(dir, e.getName());
+            // Don't let a malicious archive write outside of the directory ("zip slip").
+            if (!(f.getCanonicalPath() + File.separator).startsWith(root)) {
+                throw new IOException("The archive entry " + e.getName() + " is outside of " + dir);
+            }
+            if (e.isDirectory()) {
+                mkdirs(f, dirs);
+                continue;
+            }
+            File p = f.getParentFile();
+            if (p != null) {
+                mkdirs(p, dirs);
+            }
+            final long time = e.getTime();
+            files.put(e.getName(), f);
+
+            // Small entries (most of them) are written by the pool.
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            long n = copy(zip, buffer, MAX_BUFFERED_ENTRY + 1);
+            unpacked.files++;
+            if (n > MAX_BUFFERED_ENTRY) {
+                OutputStream out = new FileOutputStream(f);
+                try {
+                    buffer.writeTo(out);
+                    n += copy(zip, out, Long.MAX_VALUE);
+                } finally {
+                    out.close();
+                }
+                f.setLastModified(time);
+                unpacked.bytes += n;
+                continue;
+            }
+
+            final byte[] data = buffer.toByteArray();
+            unpacked.bytes += data.length;
+            pending.acquire(data.length);
+            writes.add(executor.submit(new Callable<Void>() {
+                public Void call() throws IOException {
                     try {
-                        IOUtils.copy(input, f);
+                        OutputStream out = new FileOutputStream(f);
+                        try {
+                            out.write(data);
+                        } finally {
+                            out.close();
+                        }
+                        f.setLastModified(time);
+                        return null;
                     } finally {
-                        input.close();
+                        pending.release(data.length);
                     }
-                    try {
-                        FilePath target = new FilePath(f);
-                        int mode = e.getUnixMode();
-                        if (mode!=0)    // Ant returns 0 if the archive doesn't record the access mode
-                            target.chmod(mode);
-                    } catch (InterruptedException ex) {
-                        LOGGER.log(Level.WARNING, "unable to set permissions", ex);
+                }
+            }));
+        }
+
+        // What's left is the central directory, which has the Unix modes.
+        byte[] buf = new byte[8192];
+        while (tail.read(buf) >= 0) {
+            // keep reading
+        }
+        waitFor(writes);
+
+        if (Functions.isWindows()) {
+            return;
+        }
+        Map<String,Integer> modes = readUnixModes(tail.getTail(), tail.getCount());
+        List<Future<?>> chmods = new ArrayList<Future<?>>();
+        for (final Map.Entry<String,File> file : files.entrySet()) {
+            final Integer mode = modes.get(file.getKey());
+            chmods.add(executor.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    File f = file.getValue();
+                    if (mode == null || mode == 0) {
+                        // The archive doesn't record the mode (made on Windows, or by jar),
+                        // so make it executable like ChmodRecAPlusX would.
+                        f.setExecutable(true, false);
+                    } else {
+                        // Archives made with "zip" from a checkout can still lose the execute bits.
+                        Files.setPosixFilePermissions(f.toPath(), toPermissions((mode & 0111) == 0 ? mode | 0111 : mode));
                     }
-                    f.setLastModified(e.getTime());
+                    return null;
                 }
+            }));
+        }
+        waitFor(chmods);
+        unpacked.modesApplied = true;
+    }
+
+    private static void mkdirs(File dir, Set<File> dirs) {
+        // Don't ask the (possibly slow) file system again about directories already made.
+        if (dirs.add(dir)) {
+            dir.mkdirs();
+        }
+    }
+
+    /**
+     * Copies up to {@code max} bytes.
+     * @return the number of bytes copied.
+     */
+    private static long copy(InputStream in, OutputStream out, long max) throws IOException {
+        byte[] buf = new byte[8192];
+        long total = 0;
+        int n;
+        while (total < max && (n = in.read(buf, 0, (int)Math.min(buf.length, max - total))) >= 0) {
+            out.write(buf, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    private static void waitFor(List<Future<?>> futures) throws IOException, InterruptedException {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException x) {
+                Throwable cause = x.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException)cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * Converts the permission bits of a Unix mode.
+     */
+    static Set<PosixFilePermission> toPermissions(int mode) {
+        // PosixFilePermission is in the same order as the bits, from OWNER_READ (0400) to OTHERS_EXECUTE (01).
+        Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        PosixFilePermission[] values = PosixFilePermission.values();
+        for (int i = 0; i < values.length; i++) {
+            if ((mode & (1 << (values.length - 1 - i))) != 0) {
+                permissions.add(values[i]);
+            }
+        }
+        return permissions;
+    }
+
+    /**
+     * Reads the Unix mode of each entry from the central directory at the end of an archive.
+     * @param tail the last bytes of the archive.
+     * @param length the length of the whole archive.
+     * @return entry names to their modes (empty if {@code tail} doesn't include the whole central directory).
+     */
+    static Map<String,Integer> readUnixModes(byte[] tail, long length) {
+        Map<String,Integer> modes = new HashMap<String,Integer>();
+
+        // Find the end of central directory record.  It can be followed by a comment (which
+        // could contain anything, even its signature), so look for the one whose comment
+        // runs exactly to the end of the archive.
+        int end = -1;
+        for (int i = tail.length - 22; i >= 0 && i >= tail.length - 22 - 0xFFFF; i--) {
+            if (readInt(tail, i) == END_OF_CENTRAL_DIRECTORY && readShort(tail, i + 20) == tail.length - 22 - i) {
+                end = i;
+                break;
             }
-        } finally {
-            zip.close();
         }
+        if (end < 0) {
+            return modes;
+        }
+
+        long start = length - tail.length;  // of the tail, in the archive
+        long directory = readInt(tail, end + 16) & 0xFFFFFFFFL;
+        if (directory == 0xFFFFFFFFL) {
+            // A ZIP64 archive: the offset is in the ZIP64 end of central directory record,
+            // which the locator right before the end of central directory record points to.
+            int locator = end - 20;
+            if (locator < 0 || readInt(tail, locator) != ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR) {
+                return modes;
+            }
+            long zip64End = readLong(tail, locator + 8) - start;
+            if (zip64End < 0 || zip64End + 56 > locator || readInt(tail, (int)zip64End) != ZIP64_END_OF_CENTRAL_DIRECTORY) {
+                LOGGER.log(Level.WARNING, "Cannot find the ZIP64 end of central directory record to read the file modes from");
+                return modes;
+            }
+            directory = readLong(tail, (int)zip64End + 48);
+        }
+
+        long offset = directory - start;
+        if (offset < 0) {
+            LOGGER.log(Level.WARNING, "The central directory of the archive is too large to read the file modes from");
+            return modes;
+        }
+        if (offset > end) {
+            return modes;
+        }
+
+        int p = (int)offset;
+        while (p + 46 <= end && readInt(tail, p) == CENTRAL_DIRECTORY_ENTRY) {
+            int platform = readShort(tail, p + 4) >> 8;
+            int nameLength = readShort(tail, p + 28);
+            int extraLength = readShort(tail, p + 30);
+            int commentLength = readShort(tail, p + 32);
+            int externalAttributes = readInt(tail, p + 38);
+            if (p + 46 + nameLength > end) {
+                break;
+            }
+            if (platform == PLATFORM_UNIX) {
+                // Names are decoded the same way as by ZipInputStream.
+                String name = new String(tail, p + 46, nameLength, Charset.forName("UTF-8"));
+                modes.put(name, (externalAttributes >> 16) & 0xFFFF);
+            }
+            p += 46 + nameLength + extraLength + commentLength;
+        }
+        return modes;
+    }
+
+    private static int readShort(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8;
     }
+
+    private static int readInt(byte[] b, int i) {
+        return readShort(b, i) | readShort(b, i + 2) << 16;
+    }
+
+    private static long readLong(byte[] b, int i) {
+        return (readInt(b, i) & 0xFFFFFFFFL) | (long)readInt(b, i + 4) << 32;
+    }
+
     @Override
     public void checkRoles(RoleChecker arg0) throws SecurityException
     {
@@ -386,9 +724,74 @@ public class CommonInstaller extends DownloadFromUrlInstaller
       
     }
   }
-  /*******************************************************************************************************************************
-   * END (Jenkins User-Agent related code changes)
-   *******************************************************************************************************************************/
+
+  /**
+   * Remembers the last bytes read from a stream.
+   */
+  static final class TailInputStream extends FilterInputStream {
+    private final byte[] buffer;
+    private long count;
+
+    TailInputStream(InputStream in, int size) {
+        super(in);
+        buffer = new byte[size];
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            buffer[(int)(count++ % buffer.length)] = (byte)b;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        for (int i = 0; i < n; ) {
+            int pos = (int)(count % buffer.length);
+            int chunk = Math.min(n - i, buffer.length - pos);
+            System.arraycopy(b, off + i, buffer, pos, chunk);
+            count += chunk;
+            i += chunk;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Read rather than skip, so that nothing is missed.
+        byte[] b = new byte[(int)Math.min(n, 8192)];
+        int read = read(b, 0, b.length);
+        return Math.max(read, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Returns the total number of bytes read.
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the last bytes read (as many as were read, up to the buffer size), in order.
+     */
+    byte[] getTail() {
+        int length = (int)Math.min(count, buffer.length);
+        byte[] tail = new byte[length];
+        int start = (int)((count - length) % buffer.length);
+        int first = Math.min(length, buffer.length - start);
+        System.arraycopy(buffer, start, tail, 0, first);
+        System.arraycopy(buffer, 0, tail, first, length - first);
+        return tail;
+    }
+  }
 
   private final static Logger LOGGER = Logger.getLogger(CommonInstaller.class.getName());
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2013, SOASTA, Inc.
+ * All Rights Reserved.
+ */
+package com.soasta.jenkins;
+
+import hudson.XmlFile;
+import hudson.model.Job;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers how long each composition took to play in a particular job,
+ * so that later builds can estimate how long it will take this time.
+ * <p>
+ * Each build loads its own copy; when it saves, what it recorded is applied to
+ * whatever is in the file by then, so concurrent builds of a job don't lose
+ * each other's history.
+ */
+public class CompositionDurations {
+    /**
+     * Estimate used for a composition that has never been played by the job
+     * (and for every composition, if nothing has been played yet).
+     */
+    static final long DEFAULT_ESTIMATE = TimeUnit.MINUTES.toMillis(5);
+
+    private static final String FILE_NAME = "cloudtest-composition-durations.xml";
+
+    /**
+     * Makes sure only one build at a time updates a particular job's file.
+     */
+    private static final ConcurrentMap<String,Object> LOCKS = new ConcurrentHashMap<String,Object>();
+
+    /**
+     * Composition name to (smoothed) duration, in milliseconds.
+     */
+    private Map<String,Long> durations = new HashMap<String,Long>();
+
+    /**
+     * What this build has recorded since it last saved, in order, by composition name.
+     */
+    private transient Map<String,List<Long>> recorded;
+
+    private transient XmlFile file;
+
+    /**
+     * Loads the durations recorded for the given job (empty, if there are none yet).
+     */
+    public static CompositionDurations load(Job<?,?> job) {
+        return load(new XmlFile(new File(job.getRootDir(), FILE_NAME)));
+    }
+
+    static CompositionDurations load(XmlFile file) {
+        CompositionDurations result = null;
+        if (file.exists()) {
+            try {
+                result = (CompositionDurations)file.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + file + "; starting over.", e);
+            }
+        }
+        if (result == null) {
+            result = new CompositionDurations();
+        }
+        if (result.durations == null) {
+            result.durations = new HashMap<String,Long>();
+        }
+        result.file = file;
+        return result;
+    }
+
+    /**
+     * Returns how long the given composition is expected to take, in milliseconds.
+     * Compositions without any history are assumed to take as long as the average
+     * composition of this job, or {@link #DEFAULT_ESTIMATE} if there is no history at all.
+     */
+    public synchronized long estimate(String composition) {
+        Long d = durations.get(composition);
+        if (d != null) {
+            return d;
+        }
+        if (durations.isEmpty()) {
+            return DEFAULT_ESTIMATE;
+        }
+        long total = 0;
+        for (long v : durations.values()) {
+            total += v;
+        }
+        return total / durations.size();
+    }
+
+    public synchronized boolean hasHistory(String composition) {
+        return durations.containsKey(composition);
+    }
+
+    /**
+     * Records how long the given composition took to play.  The new value is averaged
+     * with the previous one, so a single slow (or aborted) run does not throw off the estimate.
+     */
+    public synchronized void record(String composition, long millis) {
+        apply(composition, millis);
+        if (recorded == null) {
+            recorded = new LinkedHashMap<String,List<Long>>();
+        }
+        List<Long> values = recorded.get(composition);
+        if (values == null) {
+            values = new ArrayList<Long>();
+            recorded.put(composition, values);
+        }
+        values.add(millis);
+    }
+
+    private void apply(String composition, long millis) {
+        Long previous = durations.get(composition);
+        durations.put(composition, previous == null ? millis : (previous + millis) / 2);
+    }
+
+    /**
+     * Saves what this build has recorded.  The file is read again first (other builds
+     * of the job may have saved in the meantime), and this build's records applied to it.
+     */
+    public synchronized void save() throws IOException {
+        if (file == null || recorded == null || recorded.isEmpty()) {
+            return;
+        }
+
+        String key = file.getFile().getAbsolutePath();
+        Object lock = LOCKS.get(key);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = LOCKS.putIfAbsent(key, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+
+        synchronized (lock) {
+            CompositionDurations latest = load(file);
+            for (Map.Entry<String,List<Long>> e : recorded.entrySet()) {
+                for (long millis : e.getValue()) {
+                    latest.apply(e.getKey(), millis);
+                }
+            }
+            file.write(latest);
+            durations = latest.durations;
+            recorded = null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CompositionDurations.class.getName());
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2013, SOASTA, Inc.
+ * All Rights Reserved.
+ */
+package com.soasta.jenkins;
+
+import hudson.FilePath;
+import hudson.Launcher.LocalLauncher;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+
+/**
+ * Keeps the list of compositions on each CloudTest server in memory, so that
+ * auto-completion doesn't have to run SCommand on every request.
+ *
+ * <p>
+ * The first request for a server fetches the list; after that, the cached list
+ * is always served right away, and once it is older than {@link #TTL} it is
+ * refreshed in the background.
+ *
+ * @see TestCompositionRunner.DescriptorImpl#doAutoCompleteComposition(String, String)
+ */
+final class CompositionListCache {
+    /**
+     * How long a composition list is considered fresh, in milliseconds.
+     */
+    static long TTL = Long.getLong(CompositionListCache.class.getName() + ".ttl", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * Server ID to cached list.
+     */
+    private static final Map<String,Entry> entries = new ConcurrentHashMap<String,Entry>();
+
+    /**
+     * Server ID to the lock held while fetching its list for the first time,
+     * so that a slow server doesn't hold up auto-completion for the others.
+     */
+    private static final ConcurrentMap<String,Object> locks = new ConcurrentHashMap<String,Object>();
+
+    private CompositionListCache() {
+    }
+
+    /**
+     * Returns the compositions on the given server that start with the given prefix.
+     */
+    static List<String> get(CloudTestServer s, String prefix) throws IOException, InterruptedException {
+        List<String> all = get(s);
+        if (prefix == null || prefix.isEmpty()) {
+            return all;
+        }
+
+        // Composition names are full paths, but don't make the user type the leading slash.
+        String path = prefix.startsWith("/") ? prefix : "/" + prefix;
+        List<String> matches = new ArrayList<String>();
+        for (String composition : all) {
+            if (composition.startsWith(prefix) || composition.startsWith(path)) {
+                matches.add(composition);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns all the compositions on the given server.
+     */
+    static List<String> get(final CloudTestServer s) throws IOException, InterruptedException {
+        Entry e = entries.get(s.getId());
+        if (e == null || !e.isFor(s)) {
+            synchronized (getLock(s.getId())) {
+                // Another request may have loaded it while we were waiting.
+                e = entries.get(s.getId());
+                if (e == null || !e.isFor(s)) {
+                    e = new Entry(s, fetch(s));
+                    entries.put(s.getId(), e);
+                }
+            }
+        } else if (e.isStale() && e.refreshing.compareAndSet(false, true)) {
+            final Entry stale = e;
+            Timer.get().submit(new Runnable() {
+                public void run() {
+                    try {
+                        entries.put(s.getId(), new Entry(s, fetch(s)));
+                    } catch (Exception x) {
+                        // Keep serving the old list; we'll try again on the next request.
+                        LOGGER.log(Level.WARNING, "Failed to refresh the composition list of " + s.getUrl(), x);
+                        stale.refreshing.set(false);
+                    }
+                }
+            });
+        }
+        return e.compositions;
+    }
+
+    private static Object getLock(String id) {
+        Object lock = locks.get(id);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = locks.putIfAbsent(id, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Runs "scommand list" on the controller to get the current list of compositions.
+     * @throws IOException if SCommand fails, so that the cached list is kept rather than emptied.
+     */
+    private static List<String> fetch(CloudTestServer s) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(install(s))
+            .add("list", "type=composition")
+            .add("url=" + s.getUrl())
+            .add("username=" + s.getUsername());
+        
+        if (s.getPassword() != null)
+            args.addMasked("password=" + s.getPassword());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int exit = new LocalLauncher(TaskListener.NULL).launch().cmds(args).stdout(out).join();
+        if (exit!=0) {
+            throw new IOException("Failed to list the compositions of " + s.getUrl() + " (SCommand exit code " + exit + ")");
+        }
+
+        List<String> compositions = new ArrayList<String>();
+        BufferedReader r = new BufferedReader(new StringReader(out.toString()));
+        String line;
+        while ((line=r.readLine())!=null) {
+            if (line.endsWith("object(s) found."))  continue;
+            compositions.add(line);
+        }
+        return Collections.unmodifiableList(compositions);
+    }
+
+    private static FilePath install(CloudTestServer s) throws IOException, InterruptedException {
+        SCommandInstaller sCommandInstaller = new SCommandInstaller(s);
+        return sCommandInstaller.scommand(Jenkins.getInstance(), TaskListener.NULL);
+    }
+
+    private static final class Entry {
+        /**
+         * Connection settings the list was fetched with, so that a
+         * reconfigured server doesn't keep serving the old list.
+         */
+        private final String url;
+        private final String username;
+        private final List<String> compositions;
+        private final long timestamp = System.currentTimeMillis();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(CloudTestServer s, List<String> compositions) {
+            this.url = s.getUrl();
+            this.username = s.getUsername();
+            this.compositions = compositions;
+        }
+
+        boolean isFor(CloudTestServer s) {
+            return equal(url, s.getUrl()) && equal(username, s.getUsername());
+        }
+
+        boolean isStale() {
+            return System.currentTimeMillis() - timestamp > TTL;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CompositionListCache.class.getName());
+}
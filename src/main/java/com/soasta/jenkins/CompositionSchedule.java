@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2013, SOASTA, Inc.
+ * All Rights Reserved.
+ */
+package com.soasta.jenkins;
+
+import hudson.Util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Orders compositions longest-processing-time-first, so that when they are
+ * played on several slots the long ones don't end up starting last.
+ *
+ * <p>
+ * Compositions are handed to the slots in {@link #getOrder()} order, each one going to
+ * whichever slot frees up first.  {@link #getSlots()} is the assignment that results
+ * if every composition takes exactly as long as estimated.
+ */
+public class CompositionSchedule {
+    private final List<String> order;
+    private final List<List<String>> slots;
+    private final long[] slotEstimates;
+    private final CompositionDurations durations;
+
+    public CompositionSchedule(String[] compositions, int slotCount, final CompositionDurations durations) {
+        this.durations = durations;
+
+        // Longest first.  The sort is stable, so ties keep the order the user listed them in.
+        order = new ArrayList<String>(Arrays.asList(compositions));
+        Collections.sort(order, new Comparator<String>() {
+            public int compare(String a, String b) {
+                long ea = durations.estimate(a);
+                long eb = durations.estimate(b);
+                return ea > eb ? -1 : (ea < eb ? 1 : 0);
+            }
+        });
+
+        slots = new ArrayList<List<String>>();
+        slotEstimates = new long[Math.max(1, slotCount)];
+        for (int i = 0; i < slotEstimates.length; i++) {
+            slots.add(new ArrayList<String>());
+        }
+
+        for (String composition : order) {
+            // Whichever slot finishes first picks up the next composition.
+            int next = 0;
+            for (int i = 1; i < slotEstimates.length; i++) {
+                if (slotEstimates[i] < slotEstimates[next]) {
+                    next = i;
+                }
+            }
+            slots.get(next).add(composition);
+            slotEstimates[next] += durations.estimate(composition);
+        }
+    }
+
+    /**
+     * The order in which the compositions should be started.
+     */
+    public List<String> getOrder() {
+        return order;
+    }
+
+    /**
+     * The compositions each slot is expected to play, in order.
+     */
+    public List<List<String>> getSlots() {
+        return slots;
+    }
+
+    /**
+     * How long the whole schedule is expected to take, in milliseconds.
+     */
+    public long getEstimatedMakespan() {
+        long max = 0;
+        for (long e : slotEstimates) {
+            max = Math.max(max, e);
+        }
+        return max;
+    }
+
+    public void print(PrintStream logger) {
+        logger.println("~");
+        logger.println("Composition schedule (longest first, estimated " + Util.getTimeSpanString(getEstimatedMakespan()) + " total):");
+        for (int i = 0; i < slots.size(); i++) {
+            for (String composition : slots.get(i)) {
+                logger.println(String.format("  slot %-3d %-10s %s%s", i + 1,
+                    Util.getTimeSpanString(durations.estimate(composition)), composition,
+                    durations.hasHistory(composition) ? "" : " (no history)"));
+            }
+        }
+        logger.println("~");
+    }
+}
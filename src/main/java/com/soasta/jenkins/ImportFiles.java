@@ -4,6 +4,7 @@
  */
 package com.soasta.jenkins;
 
+import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
@@ -14,10 +15,16 @@ import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.WorkspaceList;
 import hudson.util.ArgumentListBuilder;
+import hudson.util.AtomicFileWriter;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
 import hudson.util.QuotedStringTokenizer;
+import jenkins.MasterToSlaveFileCallable;
 
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.AncestorInPath;
@@ -25,8 +32,38 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 public class ImportFiles extends AbstractSCommandBuilder {
     /**
@@ -49,6 +86,26 @@ public class ImportFiles extends AbstractSCommandBuilder {
      */
     private String additionalOptions;
 
+    /**
+     * Whether to only import the files that changed since the last successful import.
+     */
+    private boolean incremental;
+
+    /**
+     * How many SCommand imports can run at the same time.
+     */
+    private int parallelism = 1;
+
+    /**
+     * Whether to zip the files up into a single bundle, and import that.
+     */
+    private boolean bundle;
+
+    /**
+     * Build variable that makes an incremental import import everything anyway.
+     */
+    static final String FORCE_FULL_IMPORT = "CLOUDTEST_FORCE_FULL_IMPORT";
+
     @DataBoundConstructor
     public ImportFiles(String cloudTestServerID, String files, String mode) {
         super(cloudTestServerID);
@@ -85,6 +142,33 @@ public class ImportFiles extends AbstractSCommandBuilder {
       this.excludes = Util.fixEmptyAndTrim(excludes);
     }
 
+    public int getParallelism() {
+        return Math.max(parallelism, 1);
+    }
+
+    @DataBoundSetter
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public boolean isBundle() {
+        return bundle;
+    }
+
+    @DataBoundSetter
+    public void setBundle(boolean bundle) {
+        this.bundle = bundle;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    @DataBoundSetter
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
     public Object readResolve() throws IOException {
         if (getCloudTestServerID() != null)
             return this;
@@ -101,6 +185,9 @@ public class ImportFiles extends AbstractSCommandBuilder {
         ImportFiles result = new ImportFiles(s.getId(), files, mode);
         result.setExcludes(excludes);
         result.setAdditionalOptions(additionalOptions);
+        result.setIncremental(incremental);
+        result.setParallelism(parallelism);
+        result.setBundle(bundle);
         return result;
     }
 
@@ -152,10 +239,327 @@ public class ImportFiles extends AbstractSCommandBuilder {
         return files.replaceAll("[\r\n]+", ",");
     }
 
+    /**
+     * Returns the file with the hashes of the files last imported successfully by this step.
+     * There is one per server and set of files, since a job can import more than once.
+     */
+    private File getManifestFile(Run<?, ?> run, String includes) {
+        String key = Util.getDigestOf(getCloudTestServerID() + '\n' + includes + '\n' + excludes);
+        return new File(run.getParent().getRootDir(), "cloudtest-import-" + key + ".txt");
+    }
+
+    /**
+     * Reads a manifest, which has a "hash path" line per file.
+     * @return the hashes by relative path (empty if there's no manifest yet).
+     */
+    static Map<String,String> readManifest(File manifest) throws IOException {
+        Map<String,String> hashes = new HashMap<String,String>();
+        if (!manifest.isFile()) {
+            return hashes;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space > 0) {
+                    hashes.put(line.substring(space + 1), line.substring(0, space));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return hashes;
+    }
+
+    static void writeManifest(File manifest, Map<String,String> hashes) throws IOException {
+        AtomicFileWriter w = new AtomicFileWriter(manifest, Charset.forName("UTF-8"));
+        try {
+            for (Map.Entry<String,String> e : hashes.entrySet()) {
+                w.write(e.getValue() + ' ' + e.getKey() + '\n');
+            }
+            w.commit();
+        } finally {
+            w.abort();
+        }
+    }
+
+    /**
+     * Returns the files that aren't in the manifest, or have a different hash.
+     */
+    static List<String> getChangedFiles(Map<String,String> hashes, Map<String,String> manifest) {
+        List<String> changed = new ArrayList<String>();
+        for (Map.Entry<String,String> e : hashes.entrySet()) {
+            if (!e.getValue().equals(manifest.get(e.getKey()))) {
+                changed.add(e.getKey());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Lists the files to import, and computes their SHA-256 hashes (on the agent, so that
+     * the files don't have to be sent to the controller).
+     * Returns the hashes by path relative to the workspace.
+     */
+    static final class HashFiles extends MasterToSlaveFileCallable<TreeMap<String,String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final String includes;
+        private final String excludes;
+
+        HashFiles(String includes, String excludes) {
+            this.includes = includes;
+            this.excludes = excludes;
+        }
+
+        public TreeMap<String,String> invoke(File dir, VirtualChannel channel) throws IOException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+
+            TreeMap<String,String> hashes = new TreeMap<String,String>();
+            byte[] buf = new byte[8192];
+            for (String path : Util.createFileSet(dir, includes, excludes).getDirectoryScanner().getIncludedFiles()) {
+                digest.reset();
+                InputStream in = new FileInputStream(new File(dir, path));
+                try {
+                    int n;
+                    while ((n = in.read(buf)) >= 0) {
+                        digest.update(buf, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+                // Always use '/', so that the manifest doesn't depend on the agent's OS.
+                hashes.put(path.replace(File.separatorChar, '/'), Util.toHexString(digest.digest()));
+            }
+            return hashes;
+        }
+    }
+
+    /**
+     * Limits on the length of an SCommand command line, which has to go through
+     * cmd.exe (since SCommand is a batch file) on Windows.
+     */
+    static final int MAX_WINDOWS_COMMAND_LINE = 8000;
+    static final int MAX_UNIX_COMMAND_LINE = 128 * 1024;
+
+    /**
+     * Files imported by one SCommand process.
+     */
+    static final class Batch {
+        /**
+         * Indexes of the files.
+         */
+        final List<Integer> files = new ArrayList<Integer>();
+        long bytes;
+        int length;
+    }
+
+    /**
+     * Splits files into batches, so that each batch's "file=" arguments fit in {@code maxLength},
+     * and there are at least {@code count} batches (unless there are fewer files).
+     * <p>
+     * Since the order of the imports can matter, the files in each batch stay in the order
+     * they're given, and so do the batches (by their first file).  With a single batch at a
+     * time, the files are simply cut into consecutive runs.  Otherwise the largest files are
+     * spread out first, each to the batch with the fewest bytes so far.
+     * @param sizes the size of each file ({@code null} to only spread out the number of files).
+     */
+    static List<Batch> makeBatches(List<String> paths, final long[] sizes, int count, int maxLength) {
+        if (paths.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (count <= 1) {
+            return splitInOrder(paths, sizes, maxLength);
+        }
+
+        int length = 0;
+        Integer[] order = new Integer[paths.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            length += getLength("file=" + paths.get(i));
+        }
+        if (sizes != null) {
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(sizes[b], sizes[a]);
+                }
+            });
+        }
+
+        count = Math.min(Math.max(count, (length + maxLength - 1) / Math.max(maxLength, 1)), paths.size());
+        while (true) {
+            PriorityQueue<Batch> queue = new PriorityQueue<Batch>(count, new Comparator<Batch>() {
+                public int compare(Batch a, Batch b) {
+                    int c = Long.compare(a.bytes, b.bytes);
+                    return c != 0 ? c : Integer.compare(a.length, b.length);
+                }
+            });
+            for (int i = 0; i < count; i++) {
+                queue.add(new Batch());
+            }
+            for (int f : order) {
+                Batch batch = queue.poll();
+                batch.files.add(f);
+                batch.bytes += sizes == null ? 0 : sizes[f];
+                batch.length += getLength("file=" + paths.get(f));
+                queue.add(batch);
+            }
+
+            List<Batch> batches = new ArrayList<Batch>(queue);
+            boolean fits = true;
+            for (Batch batch : batches) {
+                fits &= batch.length <= maxLength;
+            }
+            if (fits || count >= paths.size()) {
+                for (Batch batch : batches) {
+                    Collections.sort(batch.files);
+                }
+                Collections.sort(batches, new Comparator<Batch>() {
+                    public int compare(Batch a, Batch b) {
+                        return a.files.get(0).compareTo(b.files.get(0));
+                    }
+                });
+                return batches;
+            }
+            count++;
+        }
+    }
+
+    /**
+     * Cuts the files into consecutive runs that each fit in {@code maxLength}.
+     */
+    private static List<Batch> splitInOrder(List<String> paths, long[] sizes, int maxLength) {
+        List<Batch> batches = new ArrayList<Batch>();
+        Batch batch = null;
+        for (int f = 0; f < paths.size(); f++) {
+            int length = getLength("file=" + paths.get(f));
+            if (batch == null || (!batch.files.isEmpty() && batch.length + length > maxLength)) {
+                batch = new Batch();
+                batches.add(batch);
+            }
+            batch.files.add(f);
+            batch.bytes += sizes == null ? 0 : sizes[f];
+            batch.length += length;
+        }
+        return batches;
+    }
+
+    /**
+     * Returns (about) how many characters arguments take on the command line.
+     */
+    private static int getLength(List<String> args) {
+        int length = 0;
+        for (String arg : args) {
+            length += getLength(arg);
+        }
+        return length;
+    }
+
+    private static int getLength(String arg) {
+        return arg.length() + 3;    // a space, and possibly quotes
+    }
+
+    /**
+     * Returns the sizes of files.
+     */
+    static final class GetFileSizes extends MasterToSlaveFileCallable<long[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> paths;
+
+        GetFileSizes(List<String> paths) {
+            this.paths = new ArrayList<String>(paths);
+        }
+
+        public long[] invoke(File dir, VirtualChannel channel) {
+            long[] sizes = new long[paths.size()];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = new File(paths.get(i)).length();
+            }
+            return sizes;
+        }
+    }
+
+    /**
+     * What {@link BundleFiles} did.
+     */
+    static final class Bundled implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        long bytes;
+        long compressedBytes;
+        long millis;
+    }
+
+    /**
+     * Zips files up into a bundle, reading each one straight into the zip.
+     * Entries are named by their path relative to the workspace (or just
+     * their name, for files outside of it).
+     */
+    static final class BundleFiles extends MasterToSlaveFileCallable<Bundled> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> paths;
+        private final String bundle;
+
+        BundleFiles(List<String> paths, String bundle) {
+            this.paths = new ArrayList<String>(paths);
+            this.bundle = bundle;
+        }
+
+        public Bundled invoke(File dir, VirtualChannel channel) throws IOException {
+            long start = System.currentTimeMillis();
+            Bundled bundled = new Bundled();
+            String base = dir.getAbsolutePath() + File.separator;
+            Set<String> names = new HashSet<String>();
+            byte[] buf = new byte[8192];
+
+            File file = new File(bundle);
+            ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                for (String path : paths) {
+                    File f = new File(path);
+                    String name = f.getAbsolutePath().startsWith(base) ? f.getAbsolutePath().substring(base.length()) : f.getName();
+                    name = name.replace(File.separatorChar, '/');
+                    if (!names.add(name)) {
+                        throw new IOException("More than one file would be bundled as " + name);
+                    }
+
+                    ZipEntry entry = new ZipEntry(name);
+                    entry.setTime(f.lastModified());
+                    zip.putNextEntry(entry);
+                    InputStream in = new FileInputStream(f);
+                    try {
+                        int n;
+                        while ((n = in.read(buf)) >= 0) {
+                            zip.write(buf, 0, n);
+                            bundled.bytes += n;
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    zip.closeEntry();
+                }
+            } finally {
+                zip.close();
+            }
+
+            bundled.compressedBytes = file.length();
+            bundled.millis = System.currentTimeMillis() - start;
+            return bundled;
+        }
+    }
+
     private static final Logger LOGGER = Logger.getLogger(ImportFiles.class.getName());
 
     @Override
-    public void perform(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener) throws InterruptedException, IOException
+    public void perform(Run<?, ?> run, final FilePath workspace, final Launcher launcher, final TaskListener listener) throws InterruptedException, IOException
     {
       ArgumentListBuilder args = getSCommandArgs(run, workspace, listener);
 
@@ -165,10 +569,21 @@ public class ImportFiles extends AbstractSCommandBuilder {
           args.add("mode=" + mode);
       
       String includes = convertFileListToIncludePattern(files);
+      EnvVars envs = run.getEnvironment(listener);
+
+      // With an incremental import, the hashes of the files by relative path.
+      Map<String,String> hashes = null;
+      final List<String> paths = new ArrayList<String>();
+      if (incremental) {
+          hashes = workspace.act(new HashFiles(includes, excludes));
+          paths.addAll(hashes.keySet());
+      } else {
+          for (FilePath filePath : workspace.list(includes, excludes)) {
+              paths.add(filePath.getRemote());
+          }
+      }
       
-      FilePath[] filePaths = workspace.list(includes, excludes);
-      
-      if (filePaths.length == 0) {
+      if (paths.isEmpty()) {
           // Didn't match anything.
           // No work required.
         
@@ -177,24 +592,143 @@ public class ImportFiles extends AbstractSCommandBuilder {
           return;
       }
 
-      for (FilePath filePath : filePaths) {
-          args.add("file=" + filePath.getRemote());
+      File manifest = null;
+      Map<String,String> previous = null;
+      if (incremental) {
+          manifest = getManifestFile(run, includes);
+          previous = readManifest(manifest);
+          if (Boolean.parseBoolean(envs.get(FORCE_FULL_IMPORT))) {
+              listener.getLogger().println(FORCE_FULL_IMPORT + " is set, so importing all " + paths.size() + " files.");
+          } else {
+              paths.retainAll(new HashSet<String>(getChangedFiles(hashes, previous)));
+              listener.getLogger().println(paths.size() + " of " + hashes.size() + " files are new or changed since the last successful import.");
+              if (paths.isEmpty()) {
+                  return;
+              }
+          }
       }
 
-      EnvVars envs = run.getEnvironment(listener);
       if(additionalOptions != null)
       {
         args.add(new QuotedStringTokenizer(envs.expand(additionalOptions)).toArray());
       }
-      
+
+      final List<String> remotes = new ArrayList<String>(paths.size());
+      for (String path : paths) {
+          remotes.add(incremental ? workspace.child(path).getRemote() : path);
+      }
+
+      final List<Batch> batches;
+      FilePath bundleFile = null;
+      if (bundle) {
+          // Zip all the files up on the agent, and import the zip in one go.
+          FilePath tmp = WorkspaceList.tempDir(workspace);
+          tmp.mkdirs();
+          bundleFile = tmp.createTempFile("cloudtest-import", ".zip");
+          Bundled bundled;
+          try {
+              bundled = workspace.act(new BundleFiles(remotes, bundleFile.getRemote()));
+          } catch (IOException e) {
+              bundleFile.delete();
+              throw e;
+          } catch (InterruptedException e) {
+              bundleFile.delete();
+              throw e;
+          }
+          listener.getLogger().println(String.format("Bundled %d files (%d bytes) into %d bytes (%.1f%%) in %d ms",
+              remotes.size(), bundled.bytes, bundled.compressedBytes,
+              bundled.bytes == 0 ? 100.0 : 100.0 * bundled.compressedBytes / bundled.bytes, bundled.millis));
+
+          Batch batch = new Batch();
+          for (int i = 0; i < remotes.size(); i++) {
+              batch.files.add(i);
+          }
+          batch.bytes = bundled.compressedBytes;
+          batches = Collections.singletonList(batch);
+      } else {
+          // Split the files into batches that fit on the command line, and
+          // (if several imports run at once) take about as long as each other.
+          int maxLength = (launcher.isUnix() ? MAX_UNIX_COMMAND_LINE : MAX_WINDOWS_COMMAND_LINE) - getLength(args.toList());
+          long[] sizes = workspace.act(new GetFileSizes(remotes));
+          batches = makeBatches(remotes, sizes, getParallelism(), maxLength);
+      }
+
       // Run it!
-      launcher.launch()
-          .cmds(args)
-          .pwd(workspace)
-          .stdout(listener)
-          .join();
+      ExecutorService executor = Executors.newFixedThreadPool(Math.min(getParallelism(), batches.size()),
+          new NamingThreadFactory(new DaemonThreadFactory(), "CloudTest import"));
+      List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+      try {
+          for (int i = 0; i < batches.size(); i++) {
+              final Batch batch = batches.get(i);
+              final int number = i + 1;
+              final ArgumentListBuilder batchArgs = args.clone();
+              if (bundleFile != null) {
+                  batchArgs.add("file=" + bundleFile.getRemote());
+              } else {
+                  for (int f : batch.files) {
+                      batchArgs.add("file=" + remotes.get(f));
+                  }
+              }
+              futures.add(executor.submit(new Callable<Integer>() {
+                  public Integer call() throws IOException, InterruptedException {
+                      long start = System.currentTimeMillis();
+                      // With more than one batch, keep the output of each together.
+                      ByteArrayOutputStream output = batches.size() > 1 ? new ByteArrayOutputStream() : null;
+                      int exitCode = launcher.launch()
+                          .cmds(batchArgs)
+                          .pwd(workspace)
+                          .stdout(output != null ? output : listener.getLogger())
+                          .join();
+                      synchronized (listener) {
+                          if (output != null) {
+                              output.writeTo(listener.getLogger());
+                          }
+                          listener.getLogger().println(String.format("Batch %d of %d: %d files (%d bytes) imported in %d ms, exit code %d",
+                              number, batches.size(), batch.files.size(), batch.bytes, System.currentTimeMillis() - start, exitCode));
+                      }
+                      return exitCode;
+                  }
+              }));
+          }
 
-      return;
-      
+          // The numbers of the batches that failed.
+          List<Integer> failed = new ArrayList<Integer>();
+          for (int i = 0; i < futures.size(); i++) {
+              int exitCode;
+              try {
+                  exitCode = futures.get(i).get();
+              } catch (ExecutionException e) {
+                  Throwable cause = e.getCause();
+                  if (cause instanceof IOException) {
+                      throw (IOException)cause;
+                  }
+                  throw new IOException(cause);
+              }
+              if (exitCode != 0) {
+                  failed.add(i + 1);
+              }
+          }
+          if (!failed.isEmpty()) {
+              String message = batches.size() > 1
+                  ? "SCommand failed to import batches " + failed + " of " + batches.size()
+                  : "SCommand failed to import the files";
+              if (incremental || getParallelism() > 1) {
+                  // Don't record anything as imported, so that it's all imported again next time.
+                  throw new AbortException(message);
+              }
+              // A plain import has never failed the build over SCommand's exit code.
+              listener.getLogger().println(message);
+              return;
+          }
+
+          if (manifest != null) {
+              writeManifest(manifest, hashes);
+          }
+      } finally {
+          executor.shutdownNow();
+          if (bundleFile != null) {
+              bundleFile.delete();
+          }
+      }
     }
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2013, SOASTA, Inc.
+ * All Rights Reserved.
+ */
+package com.soasta.jenkins;
+
+import hudson.Util;
+import hudson.util.VersionNumber;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Keeps the installer archives downloaded from CloudTest servers on the controller,
+ * so that each one is only downloaded once, however many nodes it is installed on
+ * (and the nodes don't need to be able to reach the server themselves).
+ * <p>
+ * Archives are stored by their SHA-256 hash, and an index maps each installer
+ * type and server build number to the hash of its archive.
+ * <p>
+ * For each server and installer type, the last {@link #KEEP_PER_SERVER} build numbers
+ * are remembered.  Index entries that no server remembers, and archives that no index
+ * entry refers to, are deleted whenever a server reports a new build number, along with
+ * the records of servers that are no longer configured.
+ */
+final class InstallerCache {
+    /**
+     * A cached installer archive.
+     */
+    static final class Archive {
+        private final File file;
+        private final String hash;
+
+        Archive(File file, String hash) {
+            this.file = file;
+            this.hash = hash;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        /**
+         * Returns the SHA-256 hash of the archive, in hex.
+         */
+        String getHash() {
+            return hash;
+        }
+    }
+
+    /**
+     * How many build numbers' archives are kept for each server and installer type.
+     */
+    static int KEEP_PER_SERVER = Integer.getInteger(InstallerCache.class.getName() + ".keepPerServer", 2);
+
+    /**
+     * Makes sure only one thread downloads a particular archive.
+     */
+    private static final ConcurrentMap<String,Object> LOCKS = new ConcurrentHashMap<String,Object>();
+
+    /**
+     * Guards the server records, and anything that adds or deletes index entries or archives.
+     */
+    private static final Object PRUNE_LOCK = new Object();
+
+    private InstallerCache() {
+    }
+
+    /**
+     * Returns the archive of an installer, downloading it from the server
+     * if it isn't cached yet.
+     */
+    static Archive get(CloudTestServer server, Installers type, VersionNumber buildNumber) throws IOException {
+        String key = type.getInstallerType() + "-" + buildNumber;
+        Object lock = LOCKS.get(key);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = LOCKS.putIfAbsent(key, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+
+        File root = getRootDir();
+        List<String> urls = new ArrayList<String>();
+        for (CloudTestServer s : Jenkins.getInstance().getDescriptorByType(CloudTestServer.DescriptorImpl.class).getServers()) {
+            urls.add(s.getUrl());
+        }
+        // Before looking anything up, so that it isn't pruned in the meantime.
+        remember(root, server.getUrl(), type.getInstallerType(), buildNumber.toString(), urls);
+
+        synchronized (lock) {
+            File index = new File(root, "index/" + key);
+            if (index.isFile()) {
+                String hash = FileUtils.readFileToString(index, "UTF-8").trim();
+                File file = getArchiveFile(root, hash);
+                if (file.isFile()) {
+                    return new Archive(file, hash);
+                }
+            }
+
+            File archives = new File(root, "sha256");
+            if (!archives.isDirectory() && !archives.mkdirs()) {
+                throw new IOException("Failed to create " + archives);
+            }
+
+            // Download to a temporary file, hashing it on the way,
+            // then move it to where it belongs.
+            File tmp = File.createTempFile("download", ".tmp", archives);
+            try {
+                MessageDigest digest = newDigest();
+                OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), digest);
+                try {
+                    server.download(type.getInstallerDownloadPath(), out);
+                } finally {
+                    out.close();
+                }
+
+                String hash = Util.toHexString(digest.digest());
+                File file = getArchiveFile(root, hash);
+                synchronized (PRUNE_LOCK) {
+                    if (!file.isFile() && !tmp.renameTo(file)) {
+                        throw new IOException("Failed to rename " + tmp + " to " + file);
+                    }
+                    FileUtils.writeStringToFile(index, hash, "UTF-8");
+                }
+
+                LOGGER.info("Downloaded " + type.getInstallerDownloadPath() + " (build " + buildNumber + ") from " + server.getUrl()
+                    + ": " + file.length() + " bytes, SHA-256 " + hash);
+                return new Archive(file, hash);
+            } finally {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Records that a server has a build number, and prunes the cache if that's new.
+     * @param configuredUrls the URLs of the configured servers; the records of other servers are dropped when pruning.
+     */
+    static void remember(File root, String url, String type, String buildNumber, Collection<String> configuredUrls) throws IOException {
+        synchronized (PRUNE_LOCK) {
+            File record = new File(root, "servers/" + Util.getDigestOf(url) + "/" + type);
+            List<String> buildNumbers = record.isFile()
+                ? new ArrayList<String>(FileUtils.readLines(record, "UTF-8"))
+                : new ArrayList<String>();
+            if (!buildNumbers.isEmpty() && buildNumbers.get(0).equals(buildNumber)) {
+                return;
+            }
+
+            // Most recent first.
+            buildNumbers.remove(buildNumber);
+            buildNumbers.add(0, buildNumber);
+            while (buildNumbers.size() > Math.max(1, KEEP_PER_SERVER)) {
+                buildNumbers.remove(buildNumbers.size() - 1);
+            }
+            FileUtils.writeLines(record, "UTF-8", buildNumbers);
+
+            Set<String> digests = new HashSet<String>();
+            digests.add(Util.getDigestOf(url));
+            for (String configuredUrl : configuredUrls) {
+                digests.add(Util.getDigestOf(configuredUrl));
+            }
+            prune(root, digests);
+        }
+    }
+
+    /**
+     * Deletes the records of the servers that are no longer configured, the index
+     * entries that no remaining server remembers, then the archives that no index
+     * entry refers to.
+     * @param digests the digests of the URLs of the servers to keep the records of.
+     */
+    private static void prune(File root, Set<String> digests) throws IOException {
+        Set<String> keys = new HashSet<String>();
+        for (File server : listFiles(new File(root, "servers"))) {
+            if (!digests.contains(server.getName())) {
+                LOGGER.info("Forgetting the installers of a CloudTest server that is no longer configured: " + server);
+                Util.deleteRecursive(server);
+                continue;
+            }
+            for (File record : listFiles(server)) {
+                for (String buildNumber : FileUtils.readLines(record, "UTF-8")) {
+                    keys.add(record.getName() + "-" + buildNumber);
+                }
+            }
+        }
+
+        Set<String> hashes = new HashSet<String>();
+        for (File index : listFiles(new File(root, "index"))) {
+            if (keys.contains(index.getName())) {
+                hashes.add(FileUtils.readFileToString(index, "UTF-8").trim());
+            } else {
+                delete(index);
+            }
+        }
+
+        for (File archive : listFiles(new File(root, "sha256"))) {
+            String name = archive.getName();
+            if (name.endsWith(".zip") && !hashes.contains(name.substring(0, name.length() - 4))) {
+                delete(archive);
+            }
+        }
+    }
+
+    private static File[] listFiles(File dir) {
+        File[] files = dir.listFiles();
+        return files == null ? new File[0] : files;
+    }
+
+    private static void delete(File file) {
+        if (file.delete()) {
+            LOGGER.info("Deleted " + file + " from the CloudTest installer cache");
+        } else {
+            // On Windows, it may still be in use; it'll be deleted next time.
+            LOGGER.warning("Failed to delete " + file + " from the CloudTest installer cache");
+        }
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static File getRootDir() {
+        return new File(Jenkins.getInstance().getRootDir(), "cache/cloudtest-installers");
+    }
+
+    private static File getArchiveFile(File root, String hash) {
+        return new File(root, "sha256/" + hash + ".zip");
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(InstallerCache.class.getName());
+}
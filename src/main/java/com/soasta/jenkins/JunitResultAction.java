@@ -4,17 +4,49 @@
  */
 package com.soasta.jenkins;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.Writer;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 
+import hudson.model.Run;
 import hudson.tasks.junit.TestAction;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 
 public class JunitResultAction extends TestAction
 {
+  /**
+   * How many messages the summary page shows at first, and then fetches at a time.
+   */
+  static final int PAGE_SIZE = 100;
+
+  /**
+   * The most messages that {@link #doMessages} returns at once.
+   */
+  static final int MAX_PAGE_SIZE = 1000;
+
+  /**
+   * The type that messages with no type of their own are listed and filtered under,
+   * since an empty type means all messages.
+   */
+  static final String NO_TYPE = "(no type)";
+
   @XStreamAlias("resultID")
   private String m_resultID = "";
 
@@ -30,9 +62,27 @@ public class JunitResultAction extends TestAction
   // For backward-compatibility only, hence not serializing
   private transient List<String> m_errorMessages;
 
+  // Only set for builds from before the messages were kept in a MessageStore file.
   @XStreamAlias("messages")
   private List<Message> m_messages;
 
+  // Where the messages are kept (see MessageStore), relative to the build directory.
+  @XStreamAlias("messageFile")
+  private String m_messageFile;
+
+  @XStreamAlias("messageEntry")
+  private String m_messageEntry;
+
+  @XStreamAlias("messageCount")
+  private int m_messageCount;
+
+  // The build this action belongs to, so the message file can be found.
+  private transient Run<?,?> m_run;
+
+  private transient SoftReference<List<Message>> m_loadedMessages;
+
+  private transient SoftReference<MessageView> m_view;
+
   public String getIconFileName()
   {
     return null;
@@ -40,7 +90,8 @@ public class JunitResultAction extends TestAction
 
   public String getUrlName()
   {
-    return "Result Dashboard URL Name";
+    // Makes doMessages available under the test case's URL.
+    return "cloudtest";
   }
 
   public String getDisplayName()
@@ -83,6 +134,11 @@ public class JunitResultAction extends TestAction
     return m_exception.replace("\n", "<br>");
   }
 
+  String getException()
+  {
+    return m_exception;
+  }
+
   public void setExceptionMessage(String exception)
   {
     m_exception = exception;
@@ -98,29 +154,244 @@ public class JunitResultAction extends TestAction
     return m_errorMessages;
   }
   
-  public void setErrorMessages(List<String> errorMessages)
+  public synchronized void setErrorMessages(List<String> errorMessages)
   {
     m_errorMessages = errorMessages;
+    m_view = null;
   }
 
-  public void addErrorMessage(String errorMessage)
+  public synchronized void addErrorMessage(String errorMessage)
   {
+    if (m_errorMessages == null)
+    {
+      m_errorMessages = new ArrayList<String>();
+    }
     m_errorMessages.add(errorMessage);
+    m_view = null;
+  }
+
+  /**
+   * Returns the messages, loading them from the message file if necessary.
+   */
+  public synchronized List<Message> getMessages()
+  {
+    if (m_messageFile == null || m_messages != null)
+    {
+      return m_messages;
+    }
+
+    List<Message> messages = m_loadedMessages == null ? null : m_loadedMessages.get();
+    if (messages == null)
+    {
+      if (m_run == null)
+      {
+        LOGGER.warning("Cannot load CloudTest messages from " + m_messageFile + " without the build");
+        return Collections.emptyList();
+      }
+
+      try
+      {
+        messages = MessageStore.read(new File(m_run.getRootDir(), m_messageFile), m_messageEntry);
+      }
+      catch (IOException e)
+      {
+        LOGGER.log(Level.WARNING, "Failed to load CloudTest messages from " + m_messageFile + " in " + m_run, e);
+        messages = Collections.emptyList();
+      }
+      m_loadedMessages = new SoftReference<List<Message>>(messages);
+    }
+    return messages;
+  }
+
+  /**
+   * Returns the number of messages (or, for old builds, error messages).
+   */
+  public int getMessageCount()
+  {
+    if (m_messageFile != null)
+    {
+      // No need to load the messages just to count them.
+      return m_messageCount;
+    }
+    return getView().get(null).size();
+  }
+
+  /**
+   * Returns the number of messages of the given type.
+   * @param type the message type (i.e. "validation-pass"), or {@code null} for all messages.
+   */
+  public int getMessageCount(String type)
+  {
+    return isAllTypes(type) ? getMessageCount() : getView().get(type).size();
+  }
+
+  /**
+   * Returns one page of the messages of the given type.
+   * @param start the index (among the messages of that type) of the first message to return.
+   * @param count the maximum number of messages to return.
+   * @param type the message type (i.e. "validation-pass"), or {@code null} for all messages.
+   */
+  public List<Message> getMessages(int start, int count, String type)
+  {
+    List<Message> messages = getView().get(type);
+    int from = Math.min(Math.max(start, 0), messages.size());
+    int to = from + Math.min(Math.max(count, 0), messages.size() - from);
+    return new ArrayList<Message>(messages.subList(from, to));
+  }
+
+  /**
+   * Returns the types of the messages, in the order they first appear.
+   * Messages with no type are listed as {@link #NO_TYPE}.
+   */
+  public Set<String> getMessageTypes()
+  {
+    return getView().byType.keySet();
   }
 
-  public List<Message> getMessages()
+  public int getPageSize()
   {
-    return m_messages;
+    return PAGE_SIZE;
   }
 
-  public void setMessages(List<Message> messages)
+  /**
+   * Called by the summary page to fetch more messages.
+   * Responds with the requested page of messages as JSON:
+   * <pre>{"total":..., "start":..., "messages":[{"type":..., "clipName":..., "content":...}, ...]}</pre>
+   * where "total" is the number of messages of the requested type.
+   */
+  public void doMessages(StaplerRequest req, StaplerResponse rsp, @QueryParameter int start, @QueryParameter int count, @QueryParameter String type) throws IOException
+  {
+    start = Math.max(0, start);
+    count = count <= 0 ? PAGE_SIZE : Math.min(count, MAX_PAGE_SIZE);
+
+    JSONArray messages = new JSONArray();
+    for (Message message : getMessages(start, count, type))
+    {
+      JSONObject json = new JSONObject();
+      json.put("type", message.getType());
+      json.put("clipName", message.getClipName() == null ? "" : message.getClipName());
+      json.put("content", message.getContent() == null ? "" : message.getContent());
+      messages.add(json);
+    }
+
+    JSONObject result = new JSONObject();
+    result.put("total", getMessageCount(type));
+    result.put("start", start);
+    result.put("messages", messages);
+
+    rsp.setContentType("application/json;charset=UTF-8");
+    Writer w = rsp.getCompressedWriter(req);
+    result.write(w);
+    w.close();
+  }
+
+  /**
+   * Returns the messages grouped by type, worked out once rather than for every count and page.
+   */
+  private synchronized MessageView getView()
+  {
+    MessageView view = m_view == null ? null : m_view.get();
+    if (view == null)
+    {
+      List<Message> messages = getMessages();
+      if ((messages == null || messages.isEmpty()) && m_errorMessages != null && !m_errorMessages.isEmpty())
+      {
+        // Builds from older versions only have error messages; show them the same way
+        // (and with the same type) as JunitResultActionConverter saves them.
+        messages = new ArrayList<Message>(m_errorMessages.size());
+        for (String error : m_errorMessages)
+        {
+          messages.add(new Message(null, null, error));
+        }
+      }
+      view = new MessageView(messages == null ? Collections.<Message>emptyList() : messages);
+      m_view = new SoftReference<MessageView>(view);
+    }
+    return view;
+  }
+
+  /**
+   * The messages, and the messages of each type.
+   */
+  private static final class MessageView
+  {
+    private final List<Message> all;
+    private final Map<String,List<Message>> byType = new LinkedHashMap<String,List<Message>>();
+
+    MessageView(List<Message> all)
+    {
+      this.all = all;
+      for (Message message : all)
+      {
+        String type = message.getType() == null ? NO_TYPE : message.getType();
+        List<Message> messages = byType.get(type);
+        if (messages == null)
+        {
+          messages = new ArrayList<Message>();
+          byType.put(type, messages);
+        }
+        messages.add(message);
+      }
+    }
+
+    List<Message> get(String type)
+    {
+      if (isAllTypes(type))
+      {
+        return all;
+      }
+      List<Message> messages = byType.get(type);
+      return messages == null ? Collections.<Message>emptyList() : messages;
+    }
+  }
+
+  private static boolean isAllTypes(String type)
+  {
+    return type == null || type.length() == 0;
+  }
+
+  public synchronized void setMessages(List<Message> messages)
   {
     m_messages = messages;
+    m_view = null;
+  }
+
+  /**
+   * Records where the messages were stored by a {@link MessageStore.Writer}.
+   */
+  synchronized void setStoredMessages(String file, String entry, int count)
+  {
+    m_messages = null;
+    m_messageFile = file;
+    m_messageEntry = entry;
+    m_messageCount = count;
+    m_loadedMessages = null;
+    m_view = null;
+  }
+
+  String getMessageFile()
+  {
+    return m_messageFile;
   }
 
-  public void addMessage(Message message)
+  String getMessageEntry()
   {
+    return m_messageEntry;
+  }
+
+  void setRun(Run<?,?> run)
+  {
+    m_run = run;
+  }
+
+  public synchronized void addMessage(Message message)
+  {
+    if (m_messages == null)
+    {
+      m_messages = new ArrayList<Message>();
+    }
     m_messages.add(message);
+    m_view = null;
   }
 
   private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
@@ -128,4 +399,6 @@ public class JunitResultAction extends TestAction
     in.defaultReadObject();
     m_errorMessages = new ArrayList<String>();
   }
+
+  private static final Logger LOGGER = Logger.getLogger(JunitResultAction.class.getName());
 }
@@ -49,6 +49,24 @@ public class JunitResultActionConverter implements Converter
     writer.setValue(resultAction.getExceptionMessage());
     writer.endNode();
     
+    if (resultAction.getMessageFile() != null)
+    {
+      // The messages are in a separate file; just refer to it
+      // (rather than loading all the messages).
+      writer.startNode("messageFile");
+      writer.setValue(resultAction.getMessageFile());
+      writer.endNode();
+
+      writer.startNode("messageEntry");
+      writer.setValue(resultAction.getMessageEntry());
+      writer.endNode();
+
+      writer.startNode("messageCount");
+      writer.setValue(Integer.toString(resultAction.getMessageCount()));
+      writer.endNode();
+      return;
+    }
+
     writer.startNode("messages");
     // sets the messages one at a time
     if (resultAction.getMessages() != null &
@@ -82,6 +100,9 @@ public class JunitResultActionConverter implements Converter
   {
     // Create JunitResultAction object
     JunitResultAction resultAction = new JunitResultAction();
+    String messageFile = null;
+    String messageEntry = null;
+    int messageCount = 0;
 
     // Traverse the XML tree
     while (reader.hasMoreChildren())
@@ -104,6 +125,18 @@ public class JunitResultActionConverter implements Converter
       {
         resultAction.setExceptionMessage(reader.getValue());
       }
+      else if ("messageFile".equals(nodeName))
+      {
+        messageFile = reader.getValue();
+      }
+      else if ("messageEntry".equals(nodeName))
+      {
+        messageEntry = reader.getValue();
+      }
+      else if ("messageCount".equals(nodeName))
+      {
+        messageCount = Integer.parseInt(reader.getValue());
+      }
       else if ("messages".equals(nodeName))
       {
         // loop through all the message-xml
@@ -137,6 +170,11 @@ public class JunitResultActionConverter implements Converter
       reader.moveUp();
     }
 
+    if (messageFile != null)
+    {
+      resultAction.setStoredMessages(messageFile, messageEntry, messageCount);
+    }
+
     return resultAction;
   }
 }
\ No newline at end of file
@@ -12,6 +12,7 @@ import hudson.model.BuildListener;
 import hudson.model.Descriptor;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.junit.CaseResult;
 import hudson.tasks.junit.SuiteResult;
 import hudson.tasks.junit.TestAction;
@@ -19,29 +20,40 @@ import hudson.tasks.junit.TestDataPublisher;
 import hudson.tasks.junit.TestObject;
 import hudson.tasks.junit.TestResult;
 import hudson.tasks.junit.TestResultAction;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
+import jenkins.MasterToSlaveFileCallable;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Node;
-import org.xml.sax.InputSource;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.lang.ref.SoftReference;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 
 @SuppressWarnings("deprecation")
@@ -50,6 +62,12 @@ public class JunitResultPublisher extends TestDataPublisher
   private static final String MESSAGE_PATH = "path";
   private static final String MESSAGE_CLIP_NAME = "clipName";
   private static final String MESSAGE_CLIP_TYPE = "type";
+
+  /**
+   * How many JUnit XML files are read at the same time.
+   * Zero means one per processor of the node the workspace is on.
+   */
+  static int THREADS = Integer.getInteger(JunitResultPublisher.class.getName() + ".threads", 0);
   
   private String urlOverride;
 
@@ -92,20 +110,21 @@ public class JunitResultPublisher extends TestDataPublisher
   }
 
   public TestResultAction.Data contributeTestData(Run<?,?> run, @Nonnull FilePath workspace, Launcher launcher,
-    TaskListener listener, TestResult testResult) throws IOException
+    TaskListener listener, TestResult testResult) throws IOException, InterruptedException
   {
     Data data = new Data();
 
+    // Get local path of the build's workspace.
+    String workspacePath = workspace.getRemote();
+
+    List<SuiteResult> suites = new ArrayList<SuiteResult>();
+    List<String> relativePaths = new ArrayList<String>();
+
     for (SuiteResult sr : testResult.getSuites())
     {
-      JunitResultAction action = new JunitResultAction();
-
       // Get the local path of the JUnit XML file (may be on a slave node).
       String fileName = sr.getFile();
 
-      // Get local path of the build's workspace.
-      String workspacePath = workspace.getRemote();
-
       // Check if there is a file to parse through
       if (fileName == null || fileName.isEmpty())
       {
@@ -117,115 +136,349 @@ public class JunitResultPublisher extends TestDataPublisher
       if (fileName.startsWith(workspacePath))
       {
         // The JUnit XML file is in the workspace.
-        try
+        suites.add(sr);
+        relativePaths.add(fileName.substring(workspacePath.length() + 1));
+      }
+      else
+      {
+        listener.error("File \"" + fileName + "\" does not appear to be in build workspace.  Skipping.");
+      }
+    }
+
+    if (suites.isEmpty())
+    {
+      return data;
+    }
+
+    // Parse the JUnit XML files where they are (the build may be on a
+    // slave), so that only the extracted data comes back over the network.
+    // The results come back in the same order as the files.
+    List<SuiteData> results = workspace.act(new ExtractSuiteData(relativePaths, THREADS));
+
+    // The messages go into a separate file, so they are only loaded when they are shown.
+    MessageStore.Writer messageStore = null;
+    try
+    {
+      for (int i = 0; i < suites.size(); i++)
+      {
+        SuiteResult sr = suites.get(i);
+        SuiteData suite = results.get(i);
+
+        if (suite.error != null)
+        {
+          listener.error("File \"" + sr.getFile() + "\" could not be processed (" + suite.error + ").  Skipping.");
+          continue;
+        }
+
+        if (sr.getCases().isEmpty())
         {
-          // Load the JUnit XML file contents.  If the build is
-          // on a slave, then this will load over the network.
-          String relativePath = fileName.substring(workspacePath.length() + 1);
-          String fileContent = workspace.child(relativePath).readToString();
-          Document junitXML = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(fileContent)));
+          listener.error("File \"" + sr.getFile() + "\" could not be processed (no test cases).  Skipping.");
+          continue;
+        }
 
-          XPath xPath = XPathFactory.newInstance().newXPath();
+        JunitResultAction action = new JunitResultAction();
 
-          // Extract the CloudTest result ID (if any) from the JUnit XML file.
-          String resultID = (String)xPath.evaluate("//testcase[1]/@resultID", junitXML, XPathConstants.STRING);
+        // Did we find a result ID?
+        if (suite.resultID != null && suite.resultID.trim().length() > 0)
+        {
+          // We found a result ID.
+          String url;
 
-          // Did we find a result ID?
-          if (resultID != null && resultID.trim().length() > 0)
+          // Is the CloudTest URL specified at the job level?
+          if (this.urlOverride != null && this.urlOverride.trim().length() > 0)
           {
-            // We found a result ID.
-            String url;
+            // The CloudTest URL is specified at the job level.
+            // Use that.
+            url = this.urlOverride;
+          }
+          else
+          {
+            // The CloudTest URL is not specified at the job level (normal case).
+            // Use the one from the JUnit XML.
+            url = suite.url;
+          }
 
-            // Is the CloudTest URL specified at the job level?
-            if (this.urlOverride != null && this.urlOverride.trim().length() > 0)
+          if (suite.resultID.equals("NA"))
+            action.setPlayList(true);
+
+          // Store the result ID and URL in the Action object.
+          // This will be used later on to render the test report.
+          action.setResultID(suite.resultID);
+          action.setUrl(url);
+          if (suite.messages != null && !suite.messages.isEmpty())
+          {
+            if (messageStore == null)
             {
-              // The CloudTest URL is specified at the job level.
-              // Use that.
-              url = this.urlOverride;
+              messageStore = new MessageStore.Writer(run.getRootDir());
             }
-            else
+            action.setStoredMessages(messageStore.getFileName(), messageStore.add(suite.messages), suite.messages.size());
+          }
+          else
+          {
+            action.setMessages(suite.messages);
+          }
+        }
+
+        data.addTestAction(sr.getCases().get(0).getId(), action);
+      }
+    }
+    finally
+    {
+      if (messageStore != null)
+      {
+        messageStore.close();
+      }
+    }
+
+    data.save(run);
+    return data;
+  }
+
+  /**
+   * The data extracted from a single JUnit XML file.
+   */
+  static final class SuiteData implements Serializable
+  {
+    private static final long serialVersionUID = 1L;
+
+    String resultID;
+    String url;
+    List<Message> messages;
+
+    /**
+     * Why the file could not be processed, or {@code null} if it was.
+     */
+    String error;
+  }
+
+  /**
+   * Extracts the CloudTest result ID, URL and messages from each of the given
+   * JUnit XML files (relative to the workspace), in one call to the node the
+   * workspace is on.
+   */
+  static final class ExtractSuiteData extends MasterToSlaveFileCallable<List<SuiteData>>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> relativePaths;
+    private final int threads;
+
+    ExtractSuiteData(List<String> relativePaths, int threads)
+    {
+      this.relativePaths = relativePaths;
+      this.threads = threads;
+    }
+
+    public List<SuiteData> invoke(final File workspace, VirtualChannel channel) throws IOException, InterruptedException
+    {
+      int poolSize = Math.min(relativePaths.size(), threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+
+      // XMLInputFactory isn't guaranteed to be thread-safe, so each thread gets its own.
+      final ThreadLocal<XMLInputFactory> factories = new ThreadLocal<XMLInputFactory>()
+      {
+        @Override
+        protected XMLInputFactory initialValue()
+        {
+          XMLInputFactory factory = XMLInputFactory.newInstance();
+          factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+          factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+          return factory;
+        }
+      };
+
+      ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, poolSize),
+          new NamingThreadFactory(new DaemonThreadFactory(), "CloudTest JUnit XML reader"));
+      try
+      {
+        List<Future<SuiteData>> futures = new ArrayList<Future<SuiteData>>(relativePaths.size());
+        for (final String relativePath : relativePaths)
+        {
+          futures.add(executor.submit(new Callable<SuiteData>()
+          {
+            public SuiteData call()
             {
-              // The CloudTest URL is not specified at the job level (normal case).
-              // Extract it from the JUnit XML.
-              url = (String)xPath.evaluate("//testsuite/@url", junitXML, XPathConstants.STRING);
+              SuiteData suite = new SuiteData();
+              try
+              {
+                extract(factories.get(), new File(workspace, relativePath), suite);
+              }
+              catch (Exception e)
+              {
+                suite.error = e.getMessage();
+              }
+              return suite;
             }
+          }));
+        }
 
-            // Extract the detailed error messages, if any.
-            NodeList messageNodes = (NodeList)xPath.evaluate("//testcase[1]/messages/message", junitXML, XPathConstants.NODESET);
-            List<Message> messages = new ArrayList<Message>();
+        // Collect the results in the same order as the files, regardless
+        // of which ones finished first.
+        List<SuiteData> results = new ArrayList<SuiteData>(futures.size());
+        for (Future<SuiteData> future : futures)
+        {
+          try
+          {
+            results.add(future.get());
+          }
+          catch (ExecutionException e)
+          {
+            throw new IOException("Failed to read JUnit XML", e.getCause());
+          }
+        }
+        return results;
+      }
+      finally
+      {
+        executor.shutdownNow();
+      }
+    }
 
-            if (messageNodes != null)
+    /**
+     * Reads the suite URL, and the result ID and messages of the first test case,
+     * in a single pass.  Nothing after the first test case is read.
+     */
+    private static void extract(XMLInputFactory factory, File file, SuiteData suite) throws IOException, XMLStreamException
+    {
+      InputStream in = new BufferedInputStream(new FileInputStream(file));
+      try
+      {
+        XMLStreamReader r = factory.createXMLStreamReader(in);
+        try
+        {
+          String url = null;
+          while (r.hasNext())
+          {
+            if (r.next() != XMLStreamConstants.START_ELEMENT)
             {
-              Message resultsMessage = null;    // The message object that will be created from the strings: type and message.
-              for (int i = 0; i < messageNodes.getLength(); i++)
-              { 
-                Node messageNode = messageNodes.item(i);
-                
-                // Checks to see if there are type and path attributes in this message.
-                // This check ensures the code is backwards compatible with older
-                // versions of CloudTest, where the result messages contained neither type
-                // nor path attributes.
-                String type = getNodeTextContent(messageNode, MESSAGE_CLIP_TYPE); // The type of message (i.e. "validation-pass").
-                String path = getNodeTextContent(messageNode, MESSAGE_PATH); // The full path of the clip.
-                
-                if (path == null)
-                {
-                  // Get the name of the clip and use the clip name if clip path is not
-                  // available.  This will also ensure backwards compatibility when a
-                  // message's clip name was passed but the message's path was not.
-                  path = getNodeTextContent(messageNode, MESSAGE_CLIP_NAME);
-                }
-                
-                String message = messageNode.getTextContent(); // The result message itself.
-                
-                resultsMessage = new Message(type, path, message);
-                // Add it to the list.  It is assumed that the messages being parsed
-                // are already in chronological order.
-                messages.add(resultsMessage);
-              }
+              continue;
             }
 
-            if (resultID.equals("NA"))
-              action.setPlayList(true);
+            String name = r.getLocalName();
+            if (url == null && "testsuite".equals(name))
+            {
+              url = r.getAttributeValue(null, "url");
+            }
+            else if ("testcase".equals(name))
+            {
+              // Extract the CloudTest result ID (if any) from the JUnit XML file.
+              String resultID = r.getAttributeValue(null, "resultID");
 
-            // Store the result ID and URL in the Action object.
-            // This will be used later on to render the test report.
-            action.setResultID(resultID);
-            action.setUrl(url);
-            action.setMessages(messages);
-          }
+              // Did we find a result ID?
+              if (resultID != null && resultID.trim().length() > 0)
+              {
+                suite.resultID = resultID;
+                suite.url = url == null ? "" : url;
 
-          data.addTestAction(sr.getCases().get(0).getId(), action);
+                // Extract the detailed error messages, if any.
+                suite.messages = readMessages(r);
+              }
+              return;
+            }
+          }
         }
-        catch (Exception e)
+        finally
         {
-          listener.error("File \"" + fileName + "\" could not be processed (" + e.getMessage() + ").  Skipping.");
+          r.close();
         }
       }
-      else
+      finally
       {
-        listener.error("File \"" + fileName + "\" does not appear to be in build workspace.  Skipping.");
+        in.close();
       }
     }
 
-    return data;
-  }
-
-  private String getNodeTextContent(Node node, String namedItem)
-  {
-    if (node == null || !node.hasAttributes())
+    /**
+     * Reads the &lt;messages&gt;&lt;message&gt; elements of the test case the reader is on,
+     * up to the end of the test case.
+     */
+    private static List<Message> readMessages(XMLStreamReader r) throws XMLStreamException
     {
-      return null;
+      List<Message> messages = new ArrayList<Message>();
+
+      int depth = 0;
+      boolean inMessages = false;
+      while (r.hasNext())
+      {
+        int event = r.next();
+        if (event == XMLStreamConstants.START_ELEMENT)
+        {
+          depth++;
+          if (depth == 1 && "messages".equals(r.getLocalName()))
+          {
+            inMessages = true;
+          }
+          else if (depth == 2 && inMessages && "message".equals(r.getLocalName()))
+          {
+            // Checks to see if there are type and path attributes in this message.
+            // This check ensures the code is backwards compatible with older
+            // versions of CloudTest, where the result messages contained neither type
+            // nor path attributes.
+            String type = r.getAttributeValue(null, MESSAGE_CLIP_TYPE); // The type of message (i.e. "validation-pass").
+            String path = r.getAttributeValue(null, MESSAGE_PATH); // The full path of the clip.
+
+            if (path == null)
+            {
+              // Get the name of the clip and use the clip name if clip path is not
+              // available.  This will also ensure backwards compatibility when a
+              // message's clip name was passed but the message's path was not.
+              path = r.getAttributeValue(null, MESSAGE_CLIP_NAME);
+            }
+
+            String message = readText(r); // The result message itself.
+            depth--;
+
+            // Add it to the list.  It is assumed that the messages being parsed
+            // are already in chronological order.
+            messages.add(new Message(type, path, message));
+          }
+        }
+        else if (event == XMLStreamConstants.END_ELEMENT)
+        {
+          if (depth == 0)
+          {
+            // End of the test case.
+            break;
+          }
+          if (depth == 1)
+          {
+            inMessages = false;
+          }
+          depth--;
+        }
+      }
+
+      return messages;
     }
-    
-    Node nodeValue = node.getAttributes().getNamedItem(namedItem);
-    
-    if (nodeValue == null)
+
+    /**
+     * Returns all the text inside the element the reader is on, leaving the
+     * reader on its end tag.
+     */
+    private static String readText(XMLStreamReader r) throws XMLStreamException
     {
-      return null;
+      StringBuilder text = new StringBuilder();
+      int depth = 0;
+      while (true)
+      {
+        switch (r.next())
+        {
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.CDATA:
+          case XMLStreamConstants.SPACE:
+            text.append(r.getTextCharacters(), r.getTextStart(), r.getTextLength());
+            break;
+          case XMLStreamConstants.START_ELEMENT:
+            depth++;
+            break;
+          case XMLStreamConstants.END_ELEMENT:
+            if (depth-- == 0)
+            {
+              return text.toString();
+            }
+            break;
+        }
+      }
     }
-    
-    return nodeValue.getTextContent();
   }
   
   @Override
@@ -236,17 +489,26 @@ public class JunitResultPublisher extends TestDataPublisher
 
   private static class Data extends TestResultAction.Data
   {
+    // Only kept in memory until the actions are saved to a TestActionIndex
+    // (and, for builds from before that, loaded from build.xml).
     private Map<String,JunitResultAction> actions = new HashMap<String,JunitResultAction>();
 
+    // The name of the TestActionIndex in the build directory, once saved.
+    private String index;
+
+    // The index, once loaded (which happens when the first action is looked up).
+    private transient SoftReference<TestActionIndex> loaded;
+
     @Override
     public List<TestAction> getTestAction(TestObject testObject)
     {
       if (testObject instanceof CaseResult)
       {
         String id = testObject.getId();
-        JunitResultAction action = actions.get(id);
+        JunitResultAction action = getAction(testObject.getRun(), id);
         if (action != null)
         {
+          action.setRun(testObject.getRun());
           return Collections.<TestAction>singletonList(action);
         }
       }
@@ -254,10 +516,53 @@ public class JunitResultPublisher extends TestDataPublisher
       return Collections.emptyList();
     }
 
+    private JunitResultAction getAction(Run<?,?> run, String id)
+    {
+      if (index == null)
+      {
+        return actions == null ? null : actions.get(id);
+      }
+
+      try
+      {
+        // Only loading the index needs the lock; actions are read without it.
+        return getIndex(run).get(id);
+      }
+      catch (IOException e)
+      {
+        LOGGER.log(Level.WARNING, "Failed to look up the CloudTest result of " + id + " in " + run, e);
+        return null;
+      }
+    }
+
+    private synchronized TestActionIndex getIndex(Run<?,?> run) throws IOException
+    {
+      TestActionIndex i = loaded == null ? null : loaded.get();
+      if (i == null)
+      {
+        i = TestActionIndex.load(run.getRootDir(), index);
+        loaded = new SoftReference<TestActionIndex>(i);
+      }
+      return i;
+    }
+
     public void addTestAction(String testObjectId, JunitResultAction action)
     {
       actions.put(testObjectId, action);
     }
+
+    /**
+     * Moves the actions out of memory (and build.xml) into an index in the build directory.
+     */
+    void save(Run<?,?> run) throws IOException
+    {
+      if (actions.isEmpty())
+      {
+        return;
+      }
+      index = TestActionIndex.write(run.getRootDir(), actions);
+      actions = null;
+    }
   }
 
   @Extension
@@ -308,4 +613,6 @@ public class JunitResultPublisher extends TestDataPublisher
       }
     }
   }
-}
\ No newline at end of file
+
+  private static final Logger LOGGER = Logger.getLogger(JunitResultPublisher.class.getName());
+}
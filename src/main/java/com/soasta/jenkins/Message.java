@@ -13,6 +13,8 @@
 
 package com.soasta.jenkins;
 
+import java.io.Serializable;
+
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 
 /**
@@ -22,8 +24,10 @@ import com.thoughtworks.xstream.annotations.XStreamAlias;
  * of the clip associated with the message (if there is one).
  */
 @XStreamAlias("message")
-public class Message
+public class Message implements Serializable
 {
+  private static final long serialVersionUID = 1L;
+
   @XStreamAlias("messageType")
   private String m_type;
   @XStreamAlias("messageClipName")
@@ -86,6 +90,24 @@ public class Message
     return m_clipName;
   }
 
+  /**
+   * Called when a message is deserialized (e.g. as part of an older build's
+   * test results).  Messages share a handful of types and clip paths, so only
+   * one copy of each is kept.
+   */
+  private Object readResolve()
+  {
+    if (m_type != null)
+    {
+      m_type = m_type.intern();
+    }
+    if (m_clipName != null)
+    {
+      m_clipName = m_clipName.intern();
+    }
+    return this;
+  }
+
   @Override
   public String toString()
   {
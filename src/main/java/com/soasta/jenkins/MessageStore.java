@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2013, SOASTA, Inc.
+ * All Rights Reserved.
+ */
+package com.soasta.jenkins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Keeps the CloudTest messages of a build's test cases in a compressed file
+ * in the build directory, so that they are only loaded when someone looks at them
+ * (rather than every time the build's test results are loaded).
+ * Each test case's messages are a separate entry in the file.
+ * <p>
+ * The same few message types and clip paths repeat across thousands of messages,
+ * so they are written once, to a dictionary entry, and messages refer to them by index.
+ * When messages are read back, each type and clip path is a single (interned) instance.
+ */
+final class MessageStore
+{
+  private static final String FILE_PREFIX = "cloudtest-messages";
+  private static final String FILE_SUFFIX = ".zip";
+
+  /**
+   * Name of the entry with the type and clip path strings.
+   * (The other entries are numbered.)
+   */
+  private static final String DICTIONARY_ENTRY = "dictionary";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private MessageStore()
+  {
+  }
+
+  /**
+   * Writes a new message file in a build directory.
+   */
+  static final class Writer implements Closeable
+  {
+    private final File m_file;
+    private final ZipOutputStream m_zip;
+    private final DataOutputStream m_out;
+    private int m_entries;
+    private final Map<String,Integer> m_dictionary = new LinkedHashMap<String,Integer>();
+
+    Writer(File buildDir) throws IOException
+    {
+      m_file = newFile(buildDir);
+      m_zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(m_file)));
+      m_out = new DataOutputStream(m_zip);
+    }
+
+    /**
+     * Returns the name of the file (relative to the build directory).
+     */
+    String getFileName()
+    {
+      return m_file.getName();
+    }
+
+    /**
+     * Adds the messages of one test case.
+     * @return the name of the entry the messages were written to.
+     */
+    String add(List<Message> messages) throws IOException
+    {
+      String entry = Integer.toString(m_entries++);
+      m_zip.putNextEntry(new ZipEntry(entry));
+      m_out.writeInt(messages.size());
+      for (Message message : messages)
+      {
+        m_out.writeInt(lookup(message.getType()));
+        m_out.writeInt(lookup(message.getClipName()));
+        writeString(m_out, message.getContent());
+      }
+      m_out.flush();
+      m_zip.closeEntry();
+      return entry;
+    }
+
+    /**
+     * Returns the dictionary index of a string, adding it if it's new.
+     * {@code null} is -1.
+     */
+    private int lookup(String s)
+    {
+      if (s == null)
+      {
+        return -1;
+      }
+      Integer index = m_dictionary.get(s);
+      if (index == null)
+      {
+        index = m_dictionary.size();
+        m_dictionary.put(s, index);
+      }
+      return index;
+    }
+
+    /**
+     * Finishes the file.  If nothing was added to it, it is deleted.
+     */
+    public void close() throws IOException
+    {
+      if (m_entries > 0)
+      {
+        m_zip.putNextEntry(new ZipEntry(DICTIONARY_ENTRY));
+        m_out.writeInt(m_dictionary.size());
+        for (String s : m_dictionary.keySet())
+        {
+          writeString(m_out, s);
+        }
+        m_out.flush();
+        m_zip.closeEntry();
+      }
+      m_zip.close();
+      if (m_entries == 0 && !m_file.delete())
+      {
+        throw new IOException("Failed to delete " + m_file);
+      }
+    }
+  }
+
+  /**
+   * Reads the messages of one test case back.
+   * @param file the message file.
+   * @param entry the entry name returned by {@link Writer#add(List)}.
+   */
+  static List<Message> read(File file, String entry) throws IOException
+  {
+    ZipFile zip = new ZipFile(file);
+    try
+    {
+      String[] dictionary = readDictionary(zip, file);
+
+      DataInputStream in = openEntry(zip, file, entry);
+      int count = in.readInt();
+      List<Message> messages = new ArrayList<Message>(count);
+      for (int i = 0; i < count; i++)
+      {
+        String type = lookup(dictionary, in.readInt());
+        String clipName = lookup(dictionary, in.readInt());
+        String content = readString(in);
+        messages.add(new Message(type, clipName, content));
+      }
+      return messages;
+    }
+    finally
+    {
+      zip.close();
+    }
+  }
+
+  private static String[] readDictionary(ZipFile zip, File file) throws IOException
+  {
+    DataInputStream in = openEntry(zip, file, DICTIONARY_ENTRY);
+    String[] dictionary = new String[in.readInt()];
+    for (int i = 0; i < dictionary.length; i++)
+    {
+      dictionary[i] = readString(in).intern();
+    }
+    return dictionary;
+  }
+
+  private static String lookup(String[] dictionary, int index) throws IOException
+  {
+    if (index == -1)
+    {
+      return null;
+    }
+    if (index < 0 || index >= dictionary.length)
+    {
+      throw new IOException("Invalid dictionary index " + index);
+    }
+    return dictionary[index];
+  }
+
+  private static DataInputStream openEntry(ZipFile zip, File file, String entry) throws IOException
+  {
+    ZipEntry e = zip.getEntry(entry);
+    if (e == null)
+    {
+      throw new FileNotFoundException("No entry " + entry + " in " + file);
+    }
+    return new DataInputStream(new BufferedInputStream(zip.getInputStream(e)));
+  }
+
+  /**
+   * Creates a file with a name that isn't taken yet, since a build
+   * can publish test results more than once.
+   */
+  private static File newFile(File buildDir) throws IOException
+  {
+    for (int i = 1; ; i++)
+    {
+      File file = new File(buildDir, i == 1 ? FILE_PREFIX + FILE_SUFFIX : FILE_PREFIX + "-" + i + FILE_SUFFIX);
+      if (file.createNewFile())
+      {
+        return file;
+      }
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException
+  {
+    if (s == null)
+    {
+      out.writeInt(-1);
+    }
+    else
+    {
+      byte[] bytes = s.getBytes(UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException
+  {
+    int length = in.readInt();
+    if (length < 0)
+    {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
@@ -4,15 +4,20 @@
  */
 package com.soasta.jenkins;
 
+import hudson.Extension;
 import hudson.FilePath;
+import hudson.model.Computer;
 import hudson.model.Node;
 import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
 import hudson.tools.DownloadFromUrlInstaller;
 import hudson.tools.ToolInstallation;
 import hudson.tools.ToolInstaller;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author Kohsuke Kawaguchi
@@ -42,12 +47,55 @@ public class SCommandInstaller extends CommonInstaller {
     }
 
     public FilePath scommand(Node node, TaskListener log) throws IOException, InterruptedException {
+        String prefix = node.getNodeName() + '\n' + getServer().getId() + '\n';
+        String key = prefix + id;
+
+        // Was it already installed (for this build number), since the node connected?
+        FilePath scommand = SCOMMANDS.get(key);
+        if (scommand != null && scommand.getChannel() == node.getChannel()) {
+            return scommand;
+        }
+
         FilePath scommandHome = performInstallation(node,log);
         String os = (String)node.toComputer().getSystemProperties().get("os.name");
         if (os != null && os.startsWith("Windows")) {
-            return scommandHome.child("bin/scommand.bat");
+            scommand = scommandHome.child("bin/scommand.bat");
         } else {
-            return scommandHome.child("bin/scommand");
+            scommand = scommandHome.child("bin/scommand");
+        }
+
+        // Forget the installations for older build numbers.
+        for (String k : SCOMMANDS.keySet()) {
+            if (k.startsWith(prefix)) {
+                SCOMMANDS.remove(k);
+            }
+        }
+        SCOMMANDS.put(key, scommand);
+        return scommand;
+    }
+
+    /**
+     * Where SCommand is installed on each node, so that every build step doesn't
+     * check for a newer version and ask the node for its OS again.
+     * Keyed by node name, server ID and installer ID (which includes the
+     * server's build number), so a new build number is installed as usual.
+     */
+    private static final ConcurrentMap<String,FilePath> SCOMMANDS = new ConcurrentHashMap<String,FilePath>();
+
+    /**
+     * Forgets the installations on a node when it (re)connects, since it
+     * could have been changed (or even replaced) in the meantime.
+     */
+    @Extension
+    public static final class NodeListener extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            String prefix = c.getName() + '\n';
+            for (String k : SCOMMANDS.keySet()) {
+                if (k.startsWith(prefix)) {
+                    SCOMMANDS.remove(k);
+                }
+            }
         }
     }
 
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2013, SOASTA, Inc.
+ * All Rights Reserved.
+ */
+package com.soasta.jenkins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the {@link JunitResultAction}s of a build in the build directory, indexed by test case ID,
+ * so that looking up the action of one test case doesn't load the actions of all the others.
+ * <p>
+ * There are two files:
+ * <ul>
+ * <li>"name.dat" has the actions, one after the other.
+ * <li>"name.idx" has the number of actions, then the ID of each test case and the offset
+ *     of its action, sorted by test case ID.
+ * </ul>
+ * The IDs are loaded once, and searched in memory; the actions are read one by one as needed.
+ */
+final class TestActionIndex
+{
+  private static final String FILE_PREFIX = "cloudtest-actions";
+  private static final String INDEX_SUFFIX = ".idx";
+  private static final String DATA_SUFFIX = ".dat";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final File data;
+  /**
+   * Test case IDs, sorted, and the offsets of their actions in {@link #data}.
+   */
+  private final String[] ids;
+  private final long[] offsets;
+  /**
+   * Actions that have been read so far.
+   */
+  private final AtomicReferenceArray<JunitResultAction> actions;
+
+  private TestActionIndex(File data, String[] ids, long[] offsets)
+  {
+    this.data = data;
+    this.ids = ids;
+    this.offsets = offsets;
+    this.actions = new AtomicReferenceArray<JunitResultAction>(ids.length);
+  }
+
+  /**
+   * Writes the actions to a new index in the build directory.
+   * @return the name of the index, for {@link #load(File, String)}.
+   */
+  static String write(File buildDir, Map<String,JunitResultAction> actions) throws IOException
+  {
+    String name = newName(buildDir);
+    SortedMap<String,JunitResultAction> sorted = new TreeMap<String,JunitResultAction>(actions);
+
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(buildDir, name + DATA_SUFFIX))));
+    try
+    {
+      DataOutputStream index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(buildDir, name + INDEX_SUFFIX))));
+      try
+      {
+        index.writeInt(sorted.size());
+        for (Map.Entry<String,JunitResultAction> e : sorted.entrySet())
+        {
+          writeString(index, e.getKey());
+          index.writeLong(data.size());
+          writeAction(data, e.getValue());
+        }
+      }
+      finally
+      {
+        index.close();
+      }
+    }
+    finally
+    {
+      data.close();
+    }
+
+    return name;
+  }
+
+  /**
+   * Loads an index.  Only the test case IDs are read now; each action is read
+   * from the data file the first time it is looked up.
+   * @param name the name returned by {@link #write(File, Map)}.
+   */
+  static TestActionIndex load(File buildDir, String name) throws IOException
+  {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(buildDir, name + INDEX_SUFFIX))));
+    try
+    {
+      int count = in.readInt();
+      String[] ids = new String[count];
+      long[] offsets = new long[count];
+      for (int i = 0; i < count; i++)
+      {
+        ids[i] = readString(in);
+        offsets[i] = in.readLong();
+      }
+      return new TestActionIndex(new File(buildDir, name + DATA_SUFFIX), ids, offsets);
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * Looks up the action of one test case.
+   * @return the action, or {@code null} if the test case has none.
+   */
+  JunitResultAction get(String id) throws IOException
+  {
+    int i = Arrays.binarySearch(ids, id);
+    if (i < 0)
+    {
+      return null;
+    }
+
+    JunitResultAction action = actions.get(i);
+    if (action == null)
+    {
+      RandomAccessFile in = new RandomAccessFile(data, "r");
+      try
+      {
+        in.seek(offsets[i]);
+        action = readAction(in);
+      }
+      finally
+      {
+        in.close();
+      }
+      // Another thread may have read it too; either copy will do.
+      actions.set(i, action);
+    }
+    return action;
+  }
+
+  /**
+   * Returns the number of test cases that have an action.
+   */
+  int size()
+  {
+    return ids.length;
+  }
+
+  private static void writeAction(DataOutputStream out, JunitResultAction action) throws IOException
+  {
+    writeString(out, action.getResultID());
+    writeString(out, action.getUrl());
+    out.writeBoolean(action.isPlayList());
+    writeString(out, action.getException());
+    writeString(out, action.getMessageFile());
+    writeString(out, action.getMessageEntry());
+    out.writeInt(action.getMessageCount());
+  }
+
+  private static JunitResultAction readAction(RandomAccessFile in) throws IOException
+  {
+    JunitResultAction action = new JunitResultAction();
+    action.setResultID(readString(in));
+    action.setUrl(readString(in));
+    action.setPlayList(in.readBoolean());
+    String exception = readString(in);
+    action.setExceptionMessage(exception == null ? "" : exception);
+    String messageFile = readString(in);
+    String messageEntry = readString(in);
+    int messageCount = in.readInt();
+    if (messageFile != null)
+    {
+      action.setStoredMessages(messageFile, messageEntry, messageCount);
+    }
+    return action;
+  }
+
+  /**
+   * Picks a name that isn't taken yet, since a build can publish test results more than once.
+   */
+  private static String newName(File buildDir) throws IOException
+  {
+    for (int i = 1; ; i++)
+    {
+      String name = i == 1 ? FILE_PREFIX : FILE_PREFIX + "-" + i;
+      if (new File(buildDir, name + INDEX_SUFFIX).createNewFile())
+      {
+        return name;
+      }
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException
+  {
+    if (s == null)
+    {
+      out.writeInt(-1);
+    }
+    else
+    {
+      byte[] bytes = s.getBytes(UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(DataInput in) throws IOException
+  {
+    int length = in.readInt();
+    if (length < 0)
+    {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
@@ -8,7 +8,6 @@ import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
-import hudson.Launcher.LocalLauncher;
 import hudson.Util;
 import hudson.model.AutoCompletionCandidates;
 import hudson.model.BuildListener;
@@ -17,24 +16,54 @@ import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
 import hudson.model.Descriptor;
 import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.junit.TestDataPublisher;
 import hudson.tasks.junit.JUnitResultArchiver;
 import hudson.util.ArgumentListBuilder;
 import hudson.util.DescribableList;
 import hudson.util.FormValidation;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import hudson.util.QuotedStringTokenizer;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.PushbackReader;
+import java.io.Reader;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import jenkins.model.Jenkins;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import jenkins.MasterToSlaveFileCallable;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
@@ -56,6 +85,15 @@ public class TestCompositionRunner extends AbstractSCommandBuilder {
     private List<TransactionThreshold> thresholds;
     private DeleteOldResultsSettings deleteOldResultsSettings;
     private boolean generatePlotCSV;
+    /**
+     * How many compositions may be played at the same time (1 or less means one after another).
+     */
+    private int maxConcurrentCompositions;
+    /**
+     * Whether to hand several compositions to a single SCommand process,
+     * instead of starting one process per composition.
+     */
+    private boolean batchCompositions;
      
     @DataBoundConstructor
     public TestCompositionRunner(String cloudTestServerID, String composition) {
@@ -105,6 +143,26 @@ public class TestCompositionRunner extends AbstractSCommandBuilder {
       this.generatePlotCSV = generatePlotCSV;
     }
     
+    public int getMaxConcurrentCompositions() {
+        return Math.max(1, maxConcurrentCompositions);
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentCompositions(int maxConcurrentCompositions)
+    {
+      this.maxConcurrentCompositions = maxConcurrentCompositions;
+    }
+    
+    public boolean getBatchCompositions() {
+        return batchCompositions;
+    }
+
+    @DataBoundSetter
+    public void setBatchCompositions(boolean batchCompositions)
+    {
+      this.batchCompositions = batchCompositions;
+    }
+    
     @DataBoundSetter
     public final void setDeleteOldResultsSettings(DeleteOldResultsSettings deleteOldResultsSettings)
     {
@@ -139,6 +197,8 @@ public class TestCompositionRunner extends AbstractSCommandBuilder {
         result.setAdditionalOptions(additionalOptions);
         result.setThresholds(thresholds);
         result.setGeneratePlotCSV(generatePlotCSV);
+        result.setMaxConcurrentCompositions(maxConcurrentCompositions);
+        result.setBatchCompositions(batchCompositions);
         if(getUrl() != null)
         {
           result.setUrl(getUrl());
@@ -160,88 +220,567 @@ public class TestCompositionRunner extends AbstractSCommandBuilder {
       String[] options = additionalOptionsExpanded == null ?
           null : new QuotedStringTokenizer(additionalOptionsExpanded).toArray();
 
-      for (String composition : compositions) {
-          ArgumentListBuilder args = getSCommandArgs(run, workspace, listener);
-
-          args.add("cmd=play", "wait", "format=junitxml")
-              .add("name=" + composition);
-          
-          // if thresholds are included in this post-build action, add them to scommand arguments 
-          if (thresholds != null) {
-              displayTransactionThreholds(listener.getLogger());
-            
-              for (TransactionThreshold threshold : thresholds) {
-                  args.add("validation=" + threshold.toScommandString());
+      if (thresholds != null) {
+          displayTransactionThreholds(listener.getLogger());
+      }
+
+      // Resolve SCommand (downloading it, if needed) once for the whole step,
+      // rather than once per composition.
+      ArgumentListBuilder baseArgs = getSCommandArgs(run, workspace, listener);
+
+      // How long each composition took in earlier builds of this job.
+      CompositionDurations durations = CompositionDurations.load(run.getParent());
+
+      int slots = Math.min(getMaxConcurrentCompositions(), compositions.length);
+      boolean complete = true;
+
+      try {
+          if (batchCompositions) {
+              List<List<String>> batches;
+              if (slots <= 1) {
+                  batches = Collections.singletonList(Arrays.asList(compositions));
+              } else {
+                  // One SCommand process per slot, each playing the compositions
+                  // the longest-first schedule assigns to that slot.
+                  CompositionSchedule schedule = new CompositionSchedule(compositions, slots, durations);
+                  schedule.print(listener.getLogger());
+                  batches = schedule.getSlots();
               }
+              complete = playBatches(batches, baseArgs, options, resultsDir, durations, workspace, launcher, listener);
+          } else if (slots <= 1) {
+              for (String composition : compositions) {
+                  if (!playComposition(composition, baseArgs, options, resultsDir, durations, workspace, launcher, listener)) {
+                      complete = false;
+                      break;
+                  }
+              }
+          } else {
+              CompositionSchedule schedule = new CompositionSchedule(compositions, slots, durations);
+              schedule.print(listener.getLogger());
+              complete = playCompositions(schedule.getOrder(), slots, baseArgs, options, resultsDir, durations, workspace, launcher, listener);
           }
-          
-          String fileName = composition + ".xml";
-
-          // Strip off any leading slash characters (composition names
-          // will typically be the full CloudTest folder path).
-          if (fileName.startsWith("/")) {
-              fileName = fileName.substring(1);
+      } finally {
+          try {
+              durations.save();
+          } catch (IOException e) {
+              LOGGER.log(Level.WARNING, "Failed to save composition durations for " + run.getParent().getFullName(), e);
           }
+      }
 
-          // Put the file in the test results directory.
-          fileName = resultsDir + File.separator + fileName;
-          
-          FilePath xml = new FilePath(workspace, fileName);
-          
-          // Make sure the directory exists.
-          xml.getParent().mkdirs();
-
-          // Add the additional options to the composition if there are any.
-          if (options != null) {
-              args.add(options);
+      if (!complete) {
+          return;
+      }
+      
+      // Now that we've finished running all the compositions, pass
+      // the results directory off to the JUnit archiver.
+      String resultsPattern = resultsDir + "/**/*.xml";
+      JUnitResultArchiver archiver = new JUnitResultArchiver(
+          resultsPattern,
+          true,
+          new DescribableList<TestDataPublisher, Descriptor<TestDataPublisher>>(
+              Saveable.NOOP,
+              Collections.singleton(new JunitResultPublisher(null))));
+      archiver.perform(run, workspace, launcher, listener);
+    }
+
+    /**
+     * Plays the given compositions on a pool of {@code slots} worker threads,
+     * each of which runs one SCommand process at a time.  Compositions are
+     * started in the given order, as soon as a worker is free.
+     * @return false if any composition did not produce any output.
+     */
+    private boolean playCompositions(List<String> compositions, int slots, final ArgumentListBuilder baseArgs, final String[] options,
+        final String resultsDir, final CompositionDurations durations, final FilePath workspace, final Launcher launcher,
+        final TaskListener listener) throws InterruptedException, IOException
+    {
+      listener.getLogger().println("Playing " + compositions.size() + " compositions, up to " + slots + " at a time.");
+
+      List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+      for (final String composition : compositions) {
+          tasks.add(new Callable<Boolean>() {
+              public Boolean call() throws Exception {
+                  return playComposition(composition, baseArgs, options, resultsDir, durations, workspace, launcher, listener);
+              }
+          });
+      }
+      return runConcurrently(tasks, slots);
+    }
+
+    /**
+     * Plays each batch of compositions with a single SCommand process (running up to
+     * {@code batches.size()} processes at the same time), and then deletes the old
+     * results of all the compositions with one more SCommand process (if configured).
+     * @return false if any batch did not produce any output.
+     */
+    private boolean playBatches(List<List<String>> batches, final ArgumentListBuilder baseArgs, final String[] options,
+        final String resultsDir, final CompositionDurations durations, final FilePath workspace, final Launcher launcher,
+        final TaskListener listener) throws InterruptedException, IOException
+    {
+      List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+      List<String> compositions = new ArrayList<String>();
+      for (final List<String> batch : batches) {
+          if (batch.isEmpty()) {
+              continue;
           }
+          final int index = tasks.size();
+          tasks.add(new Callable<Boolean>() {
+              public Boolean call() throws Exception {
+                  return playBatch(index, batch, baseArgs, options, resultsDir, durations, workspace, launcher, listener);
+              }
+          });
+          compositions.addAll(batch);
+      }
+
+      listener.getLogger().println("Playing " + compositions.size() + " compositions with " + tasks.size() + " SCommand process(es).");
 
-          if (generatePlotCSV) {
-              args.add("outputthresholdcsvdir=" + workspace);
+      if (!runConcurrently(tasks, tasks.size())) {
+          return false;
+      }
+
+      if (deleteOldResults) {
+          // Run SCommand once more to clean up the old results of every composition.
+          ArgumentListBuilder args = baseArgs.clone();
+
+          args.add("cmd=delete", "type=result");
+          for (String composition : compositions) {
+              args.add("path=" + composition);
           }
+          args.add("maxage=" + maxDaysOfResults);
 
-          // Run it!
-          launcher.launch()
+          launcher
+              .launch()
               .cmds(args)
               .pwd(workspace)
-              .stdout(xml.write())
+              .stdout(listener)
               .stderr(listener.getLogger())
               .join();
+      }
+      return true;
+    }
 
-          if (xml.length() == 0) {
-              // SCommand did not produce any output.
-              // This should never happen, but just in case...
-              return;
+    /**
+     * Runs the given tasks on up to {@code slots} worker threads.
+     * @return true if every task returned true.
+     */
+    private static boolean runConcurrently(List<Callable<Boolean>> tasks, int slots) throws InterruptedException, IOException
+    {
+      if (slots <= 1) {
+          boolean complete = true;
+          for (Callable<Boolean> task : tasks) {
+              try {
+                  complete &= task.call();
+              } catch (IOException e) {
+                  throw e;
+              } catch (InterruptedException e) {
+                  throw e;
+              } catch (Exception e) {
+                  throw new IOException("Failed to play composition", e);
+              }
           }
+          return complete;
+      }
 
-          if (deleteOldResults) {
-              // Run SCommand again to clean up the old results.
-              args = getSCommandArgs(run, workspace, listener);
-
-              args.add("cmd=delete", "type=result")
-                  .add("path=" + composition)
-                  .add("maxage=" + maxDaysOfResults);
-
-              launcher
-                  .launch()
-                  .cmds(args)
-                  .pwd(workspace)
-                  .stdout(listener)
-                  .stderr(listener.getLogger())
-                  .join();
+      ExecutorService executor = Executors.newFixedThreadPool(slots,
+          new NamingThreadFactory(new DaemonThreadFactory(), "CloudTest composition runner"));
+      try {
+          List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+          for (Callable<Boolean> task : tasks) {
+              results.add(executor.submit(task));
+          }
+
+          boolean complete = true;
+          for (Future<Boolean> result : results) {
+              try {
+                  complete &= result.get();
+              } catch (ExecutionException e) {
+                  Throwable cause = e.getCause();
+                  if (cause instanceof IOException)
+                      throw (IOException)cause;
+                  if (cause instanceof InterruptedException)
+                      throw (InterruptedException)cause;
+                  throw new IOException("Failed to play composition", cause);
+              }
           }
+          return complete;
+      } finally {
+          // Interrupting the workers also kills any SCommand process
+          // that is still running (e.g. if the build was aborted).
+          executor.shutdownNow();
       }
+    }
+
+    /**
+     * Plays a single composition, writing its JUnit XML into the results directory,
+     * and then deletes its old results from the server (if configured).
+     * How long the composition took is recorded in {@code durations}.
+     * @return false if SCommand did not produce any output.
+     */
+    private boolean playComposition(String composition, ArgumentListBuilder baseArgs, String[] options, String resultsDir,
+        CompositionDurations durations, FilePath workspace, Launcher launcher, TaskListener listener) throws InterruptedException, IOException
+    {
+      ArgumentListBuilder args = baseArgs.clone();
+
+      args.add("cmd=play", "wait", "format=junitxml")
+          .add("name=" + composition);
+
+      addPlayOptions(args, options, workspace);
       
-      // Now that we've finished running all the compositions, pass
-      // the results directory off to the JUnit archiver.
-      String resultsPattern = resultsDir + "/**/*.xml";
-      JUnitResultArchiver archiver = new JUnitResultArchiver(
-          resultsPattern,
-          true,
-          new DescribableList<TestDataPublisher, Descriptor<TestDataPublisher>>(
-              Saveable.NOOP,
-              Collections.singleton(new JunitResultPublisher(null))));
-      archiver.perform(run, workspace, launcher, listener);
+      FilePath xml = new FilePath(workspace, resultsDir + File.separator + getResultFileName(composition));
+      
+      // Make sure the directory exists.
+      xml.getParent().mkdirs();
+
+      // Run it!
+      long start = System.currentTimeMillis();
+      launcher.launch()
+          .cmds(args)
+          .pwd(workspace)
+          .stdout(xml.write())
+          .stderr(listener.getLogger())
+          .join();
+
+      if (xml.length() == 0) {
+          // SCommand did not produce any output.
+          // This should never happen, but just in case...
+          return false;
+      }
+
+      durations.record(composition, System.currentTimeMillis() - start);
+
+      if (deleteOldResults) {
+          // Run SCommand again to clean up the old results.
+          args = baseArgs.clone();
+
+          args.add("cmd=delete", "type=result")
+              .add("path=" + composition)
+              .add("maxage=" + maxDaysOfResults);
+
+          launcher
+              .launch()
+              .cmds(args)
+              .pwd(workspace)
+              .stdout(listener)
+              .stderr(listener.getLogger())
+              .join();
+      }
+      return true;
+    }
+
+    /**
+     * Plays several compositions with a single SCommand process, and then splits
+     * its output into one JUnit XML file per composition in the results directory.
+     * @return false if SCommand did not produce any results.
+     */
+    private boolean playBatch(int index, List<String> batch, ArgumentListBuilder baseArgs, String[] options, String resultsDir,
+        CompositionDurations durations, FilePath workspace, Launcher launcher, TaskListener listener) throws InterruptedException, IOException
+    {
+      ArgumentListBuilder args = baseArgs.clone();
+
+      args.add("cmd=play", "wait", "format=junitxml");
+      for (String composition : batch) {
+          args.add("name=" + composition);
+      }
+
+      addPlayOptions(args, options, workspace);
+
+      // Not named *.xml, so the JUnit archiver doesn't pick it up.
+      FilePath output = new FilePath(workspace, resultsDir + File.separator + ".batch-" + index + ".out");
+
+      // Make sure the directory exists.
+      output.getParent().mkdirs();
+
+      // Run it!
+      long start = System.currentTimeMillis();
+      launcher.launch()
+          .cmds(args)
+          .pwd(workspace)
+          .stdout(output.write())
+          .stderr(listener.getLogger())
+          .join();
+      long elapsed = System.currentTimeMillis() - start;
+
+      if (output.length() == 0) {
+          // SCommand did not produce any output.
+          // This should never happen, but just in case...
+          return false;
+      }
+
+      Map<String,Long> suites;
+      try {
+          suites = output.act(new SplitBatchOutput(new ArrayList<String>(batch)));
+      } finally {
+          output.delete();
+      }
+
+      for (String composition : batch) {
+          Long time = suites.get(composition);
+          if (time == null) {
+              listener.error("SCommand did not report any results for composition " + composition + ".");
+          } else {
+              // Fall back to an even share of the whole batch, if the suite has no time.
+              durations.record(composition, time >= 0 ? time : elapsed / batch.size());
+          }
+      }
+      return !suites.isEmpty();
+    }
+
+    /**
+     * Adds the options shared by every "play" command: thresholds, additional options
+     * and the Plot plugin CSV output directory.
+     */
+    private void addPlayOptions(ArgumentListBuilder args, String[] options, FilePath workspace)
+    {
+      // if thresholds are included in this post-build action, add them to scommand arguments 
+      if (thresholds != null) {
+          for (TransactionThreshold threshold : thresholds) {
+              args.add("validation=" + threshold.toScommandString());
+          }
+      }
+
+      // Add the additional options to the composition if there are any.
+      if (options != null) {
+          args.add(options);
+      }
+
+      if (generatePlotCSV) {
+          args.add("outputthresholdcsvdir=" + workspace);
+      }
+    }
+
+    /**
+     * Returns the name of the JUnit XML file for the given composition,
+     * relative to the results directory.
+     */
+    static String getResultFileName(String composition)
+    {
+      String fileName = composition + ".xml";
+
+      // Strip off any leading slash characters (composition names
+      // will typically be the full CloudTest folder path).
+      if (fileName.startsWith("/")) {
+          fileName = fileName.substring(1);
+      }
+      return fileName;
+    }
+
+    /**
+     * Splits the output of a batched "play" command, which contains one &lt;testsuite&gt;
+     * per composition (either as separate documents or wrapped in &lt;testsuites&gt;),
+     * into one JUnit XML file per composition next to it.
+     * Returns the composition names that were found, mapped to the suite's
+     * time in milliseconds (or -1 if it has none).
+     */
+    static final class SplitBatchOutput extends MasterToSlaveFileCallable<Map<String,Long>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> compositions;
+
+        SplitBatchOutput(List<String> compositions) {
+            this.compositions = compositions;
+        }
+
+        public Map<String,Long> invoke(File f, VirtualChannel channel) throws IOException {
+            Map<String,Long> found = new LinkedHashMap<String,Long>();
+            List<String> remaining = new ArrayList<String>(compositions);
+
+            XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+            inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+            XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+            // The output may be several XML documents back to back, so strip
+            // their declarations and wrap everything in a single root element.
+            Reader in = new SequenceReader(
+                new StringReader("<batch>"),
+                new XmlDeclarationFilter(new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"))),
+                new StringReader("</batch>"));
+            try {
+                XMLEventReader r = inputFactory.createXMLEventReader(in);
+                while (r.hasNext()) {
+                    XMLEvent e = r.nextEvent();
+                    if (!e.isStartElement() || !"testsuite".equals(e.asStartElement().getName().getLocalPart())) {
+                        continue;
+                    }
+
+                    StartElement suite = e.asStartElement();
+                    String composition = match(attribute(suite, "name"), remaining);
+                    if (composition == null) {
+                        LOGGER.warning("Ignoring test suite " + attribute(suite, "name") + " in " + f
+                            + ", which doesn't match any of " + remaining);
+                        skip(r);
+                        continue;
+                    }
+                    remaining.remove(composition);
+                    found.put(composition, parseTime(attribute(suite, "time")));
+
+                    File xml = new File(f.getParentFile(), getResultFileName(composition));
+                    xml.getParentFile().mkdirs();
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(xml));
+                    try {
+                        XMLEventWriter w = outputFactory.createXMLEventWriter(out, "UTF-8");
+                        w.add(eventFactory.createStartDocument("UTF-8", "1.0"));
+                        w.add(suite);
+                        int depth = 1;
+                        while (depth > 0 && r.hasNext()) {
+                            XMLEvent child = r.nextEvent();
+                            if (child.isStartElement()) {
+                                depth++;
+                            } else if (child.isEndElement()) {
+                                depth--;
+                            }
+                            w.add(child);
+                        }
+                        w.add(eventFactory.createEndDocument());
+                        w.close();
+                    } finally {
+                        out.close();
+                    }
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Failed to split SCommand output " + f, e);
+            } finally {
+                in.close();
+            }
+            return found;
+        }
+
+        /**
+         * Finds the composition a suite belongs to: by full path, or by its last path segment.
+         * @return {@code null} if it doesn't match any of them (rather than guessing, and
+         *     reporting its results under the wrong composition).
+         */
+        static String match(String suiteName, List<String> remaining) {
+            if (suiteName != null) {
+                for (String c : remaining) {
+                    if (c.equals(suiteName) || c.endsWith("/" + suiteName)) {
+                        return c;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private static String attribute(StartElement e, String name) {
+            Attribute a = e.getAttributeByName(new QName(name));
+            return a == null ? null : a.getValue();
+        }
+
+        private static long parseTime(String seconds) {
+            try {
+                return seconds == null ? -1 : (long)(Double.parseDouble(seconds) * 1000);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private static void skip(XMLEventReader r) throws XMLStreamException {
+            int depth = 1;
+            while (depth > 0 && r.hasNext()) {
+                XMLEvent e = r.nextEvent();
+                if (e.isStartElement()) {
+                    depth++;
+                } else if (e.isEndElement()) {
+                    depth--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops any XML declarations ({@code <?xml ...?>}) from the underlying stream.
+     */
+    static final class XmlDeclarationFilter extends Reader {
+        private final PushbackReader in;
+
+        XmlDeclarationFilter(Reader in) {
+            this.in = new PushbackReader(in, 5);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = in.read();
+            while (c == '<') {
+                // read() may return fewer characters than asked for, even before the end.
+                char[] buf = new char[5];
+                int n = 0;
+                int r;
+                while (n < buf.length && (r = in.read(buf, n, buf.length - n)) >= 0) {
+                    n += r;
+                }
+                if (n == 5 && new String(buf).matches("\\?xml\\s")) {
+                    // Skip to the end of the declaration.
+                    int prev = 0;
+                    while ((c = in.read()) != -1 && !(prev == '?' && c == '>')) {
+                        prev = c;
+                    }
+                    c = in.read();
+                } else {
+                    if (n > 0) {
+                        in.unread(buf, 0, n);
+                    }
+                    return '<';
+                }
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int i = 0;
+            while (i < len) {
+                int c = read();
+                if (c == -1) {
+                    break;
+                }
+                cbuf[off + i++] = (char)c;
+                if (!in.ready()) {
+                    break;
+                }
+            }
+            return i == 0 ? -1 : i;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads several readers one after another.
+     */
+    static final class SequenceReader extends Reader {
+        private final Reader[] readers;
+        private int current;
+
+        SequenceReader(Reader... readers) {
+            this.readers = readers;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            while (current < readers.length) {
+                int n = readers[current].read(cbuf, off, len);
+                if (n > 0) {
+                    return n;
+                }
+                if (n == -1) {
+                    current++;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Reader r : readers) {
+                r.close();
+            }
+        }
     }
 
     @Override
@@ -310,36 +849,57 @@ public class TestCompositionRunner extends AbstractSCommandBuilder {
             }
         }
 
-        public AutoCompletionCandidates doAutoCompleteComposition(@QueryParameter String cloudTestServerID) throws IOException, InterruptedException {
-            CloudTestServer s = CloudTestServer.getByID(cloudTestServerID);
-
-            ArgumentListBuilder args = new ArgumentListBuilder();
-            args.add(install(s))
-                .add("list", "type=composition")
-                .add("url=" + s.getUrl())
-                .add("username=" + s.getUsername());
-            
-            if (s.getPassword() != null)
-                args.addMasked("password=" + s.getPassword());
-
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            int exit = new LocalLauncher(TaskListener.NULL).launch().cmds(args).stdout(out).join();
-            if (exit==0) {
-                BufferedReader r = new BufferedReader(new StringReader(out.toString()));
-                AutoCompletionCandidates a = new AutoCompletionCandidates();
-                String line;
-                while ((line=r.readLine())!=null) {
-                    if (line.endsWith("object(s) found."))  continue;
-                    a.add(line);
+        /**
+         * Called automatically by Jenkins whenever the "maxConcurrentCompositions"
+         * field is modified by the user.
+         * @param value the new number of compositions to play at the same time.
+         */
+        public FormValidation doCheckMaxConcurrentCompositions(@QueryParameter String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return FormValidation.ok();
+            } else {
+                try {
+                    if (Integer.parseInt(value) <= 0) {
+                        return FormValidation.error("Value must be > 0.");
+                    } else {
+                        return FormValidation.ok();
+                    }
+                } catch (NumberFormatException e) {
+                    return FormValidation.error("Value must be numeric.");
                 }
-                return a;
             }
-            return new AutoCompletionCandidates(); // no candidate
         }
 
-        private synchronized FilePath install(CloudTestServer s) throws IOException, InterruptedException {
-            SCommandInstaller sCommandInstaller = new SCommandInstaller(s);
-            return sCommandInstaller.scommand(Jenkins.getInstance(), TaskListener.NULL);
+        /**
+         * Called automatically by Jenkins whenever the user types in the "composition" field.
+         * Suggestions come from {@link CompositionListCache}, so this doesn't normally run SCommand.
+         * @param value the current contents of the field; the last line is used as the prefix.
+         */
+        public AutoCompletionCandidates doAutoCompleteComposition(@QueryParameter String value, @QueryParameter String cloudTestServerID) throws IOException, InterruptedException {
+            AutoCompletionCandidates a = new AutoCompletionCandidates();
+            CloudTestServer s = CloudTestServer.getByID(cloudTestServerID);
+            if (s == null) {
+                return a; // no candidate
+            }
+
+            // The field holds one composition per line; complete the one being typed.
+            String prefix = "";
+            if (value != null) {
+                String[] lines = value.split("[\r\n]+");
+                prefix = lines.length == 0 ? "" : lines[lines.length - 1].trim();
+            }
+
+            List<String> compositions;
+            try {
+                compositions = CompositionListCache.get(s, prefix);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to list the compositions of " + s.getUrl(), e);
+                return a; // no candidate
+            }
+            for (String composition : compositions) {
+                a.add(composition);
+            }
+            return a;
         }
     }
 
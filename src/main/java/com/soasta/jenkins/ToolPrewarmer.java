@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2013, SOASTA, Inc.
+ * All Rights Reserved.
+ */
+package com.soasta.jenkins;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.VersionNumber;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Installs the CloudTest tools on the online agents as soon as a CloudTest server's
+ * build number changes, so that the first build on each agent after an upgrade
+ * doesn't spend its own time downloading and unpacking them.
+ * <p>
+ * Enabled (and limited to certain agents) in the global configuration of {@link CloudTestServer}.
+ */
+@Extension
+public class ToolPrewarmer extends AsyncPeriodicWork {
+    /**
+     * The build number each server's tools were last installed for on each node,
+     * by node name and server ID.
+     */
+    private static final Map<String,VersionNumber> INSTALLED = new ConcurrentHashMap<String,VersionNumber>();
+
+    public ToolPrewarmer() {
+        super("CloudTest tool installation");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        // The build number is cached for about as long, so checking more often wouldn't notice sooner.
+        return Math.max(CloudTestServer.BUILD_NUMBER_TTL, TimeUnit.MINUTES.toMillis(1));
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        CloudTestServer.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(CloudTestServer.DescriptorImpl.class);
+        if (!descriptor.isPrewarm()) {
+            return;
+        }
+
+        String expression = descriptor.getPrewarmLabel();
+        Label label = expression == null ? null : Jenkins.getInstance().getLabel(expression);
+        List<Node> nodes = new ArrayList<Node>();
+        for (Computer c : Jenkins.getInstance().getComputers()) {
+            Node node = c.getNode();
+            if (node != null && c.isOnline() && node.getNumExecutors() > 0 && (label == null || label.contains(node))) {
+                nodes.add(node);
+            }
+        }
+
+        for (CloudTestServer server : descriptor.getServers()) {
+            VersionNumber buildNumber;
+            try {
+                buildNumber = server.getBuildNumber();
+            } catch (IOException e) {
+                listener.getLogger().println("Cannot check the build number of " + server.getUrl() + ": " + e);
+                continue;
+            }
+            // Agents that come online later are installed on the next time around.
+            List<Node> pending = new ArrayList<Node>();
+            for (Node node : nodes) {
+                if (!buildNumber.equals(INSTALLED.get(node.getNodeName() + '\n' + server.getId()))) {
+                    pending.add(node);
+                }
+            }
+            if (pending.isEmpty()) {
+                continue;
+            }
+
+            listener.getLogger().println("Installing the tools of " + server.getUrl() + " (build " + buildNumber + ") on " + pending.size() + " agents");
+            for (Node node : install(server, pending, descriptor, listener)) {
+                INSTALLED.put(node.getNodeName() + '\n' + server.getId(), buildNumber);
+            }
+        }
+    }
+
+    /**
+     * Installs the tools of one server on the agents, a few at a time.
+     * @return the agents they were installed on (the others are tried again next time).
+     */
+    private List<Node> install(final CloudTestServer server, List<Node> nodes, CloudTestServer.DescriptorImpl descriptor,
+            final TaskListener listener) throws InterruptedException {
+        final boolean matt = descriptor.isPrewarmMakeAppTouchTestable();
+        final boolean iOS = descriptor.isPrewarmIOSAppInstaller();
+
+        ExecutorService executor = Executors.newFixedThreadPool(descriptor.getPrewarmThreads(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "CloudTest tool installation"));
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final Node node : nodes) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException, InterruptedException {
+                        new SCommandInstaller(server).scommand(node, listener);
+                        if (matt) {
+                            new MakeAppTouchTestableInstaller(server).performInstallation(node, listener);
+                        }
+                        if (iOS) {
+                            new iOSAppInstallerInstaller(server).performInstallation(node, listener);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            List<Node> done = new ArrayList<Node>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                    done.add(nodes.get(i));
+                } catch (ExecutionException e) {
+                    String name = nodes.get(i).getDisplayName();
+                    listener.error("Failed to install the tools of " + server.getUrl() + " on " + name);
+                    LOGGER.log(Level.WARNING, "Failed to install the tools of " + server.getUrl() + " on " + name, e.getCause());
+                }
+            }
+            return done;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Forgets what was installed on a node when it (re)connects, since it
+     * could have been changed (or even replaced) in the meantime.
+     */
+    @Extension
+    public static final class NodeListener extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            String prefix = c.getName() + '\n';
+            for (String k : INSTALLED.keySet()) {
+                if (k.startsWith(prefix)) {
+                    INSTALLED.remove(k);
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ToolPrewarmer.class.getName());
+}
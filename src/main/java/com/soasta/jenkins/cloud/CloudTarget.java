@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2013, SOASTA, Inc.
+ * All Rights Reserved.
+ */
+package com.soasta.jenkins.cloud;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * A grid, RSDB or test environment to start.
+ */
+public class CloudTarget extends AbstractDescribableImpl<CloudTarget>
+{
+  public enum Type
+  {
+    GRID ("Grid", "start-grid", 600),
+    RSDB ("RSDB", "start-rsdb", 1200),
+    ENVIRONMENT ("Test Environment", "start-env", 1200);
+
+    private final String displayName;
+    private final String command;
+    private final int defaultTimeout;
+
+    private Type(String displayName, String command, int defaultTimeout)
+    {
+      this.displayName = displayName;
+      this.command = command;
+      this.defaultTimeout = defaultTimeout;
+    }
+
+    public String getDisplayName()
+    {
+      return displayName;
+    }
+
+    /**
+     * Returns the SCommand command that starts this type of target.
+     */
+    public String getCommand()
+    {
+      return command;
+    }
+
+    /**
+     * Returns the default time to wait for this type of target to be ready, in seconds.
+     */
+    public int getDefaultTimeout()
+    {
+      return defaultTimeout;
+    }
+  }
+
+  private final Type type;
+  private final String name;
+
+  @DataBoundConstructor
+  public CloudTarget(Type type, String name)
+  {
+    this.type = type;
+    this.name = name;
+  }
+
+  public Type getType()
+  {
+    return type;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  @Override
+  public String toString()
+  {
+    return type.getDisplayName() + " " + name;
+  }
+
+  @Extension
+  public static class DescriptorImpl extends Descriptor<CloudTarget>
+  {
+    @Override
+    public String getDisplayName()
+    {
+      return "";
+    }
+
+    public ListBoxModel doFillTypeItems()
+    {
+      ListBoxModel items = new ListBoxModel();
+      for (Type type : Type.values())
+      {
+        items.add(type.getDisplayName(), type.name());
+      }
+      return items;
+    }
+
+    public FormValidation doCheckName(@QueryParameter String value)
+    {
+      if (value == null || value.trim().isEmpty())
+      {
+        return FormValidation.error("Name is Required");
+      }
+      return FormValidation.ok();
+    }
+  }
+}
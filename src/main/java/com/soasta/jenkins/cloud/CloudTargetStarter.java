@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2013, SOASTA, Inc.
+ * All Rights Reserved.
+ */
+package com.soasta.jenkins.cloud;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ * Starts several grids, RSDBs and test environments at once, and waits for all of them
+ * (with one timeout), so that their provisioning times overlap instead of adding up.
+ */
+public final class CloudTargetStarter
+{
+  /**
+   * How long to wait past the timeout given to SCommand, so that it can report the status itself.
+   */
+  private static final long GRACE_PERIOD = TimeUnit.SECONDS.toMillis(60);
+
+  private CloudTargetStarter()
+  {
+  }
+
+  /**
+   * Returns the timeout to use for some targets, if none was configured.
+   */
+  public static int getDefaultTimeout(List<CloudTarget> targets)
+  {
+    int timeOut = 0;
+    for (CloudTarget target : targets)
+    {
+      timeOut = Math.max(timeOut, target.getType().getDefaultTimeout());
+    }
+    return timeOut;
+  }
+
+  /**
+   * Returns a target that's listed more than once, or {@code null} if there are none.
+   * The same type and name would be started twice at once, with both writing their status
+   * to the same file.
+   */
+  public static String findDuplicate(List<CloudTarget> targets)
+  {
+    Set<String> seen = new HashSet<String>();
+    for (CloudTarget target : targets)
+    {
+      if (!seen.add(target.getType() + "\n" + target.getName()))
+      {
+        return target.toString();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Starts the targets, and waits until all of them are ready.
+   * @param timeOut how long to wait for all of them, in seconds,
+   *        or a negative number (like the single target steps) to wait as long as it takes.
+   * @throws AbortException if any of them isn't ready in time.
+   */
+  public static void start(FilePath workspace, Launcher launcher, final TaskListener listener,
+      String url, String cloudTestServerID, List<CloudTarget> targets, int timeOut) throws IOException, InterruptedException
+  {
+    if (targets.isEmpty())
+    {
+      return;
+    }
+    // Also checked when configured, but not for configurations saved before that.
+    String duplicate = findDuplicate(targets);
+    if (duplicate != null)
+    {
+      throw new AbortException(duplicate + " is listed more than once");
+    }
+
+    ArgumentListBuilder base = new CloudCommandBuilder()
+      .setWorkspace(workspace)
+      .setUrl(url)
+      .setListener(listener)
+      .setCloudTestServerID(cloudTestServerID)
+      .build();
+
+    listener.getLogger().println("Starting " + targets.size() + " targets at once, "
+      + (timeOut < 0 ? "with no timeout" : "with a timeout of " + timeOut + " seconds"));
+    final long deadline = timeOut < 0 ? Long.MAX_VALUE
+      : System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeOut) + GRACE_PERIOD;
+
+    ExecutorService executor = Executors.newCachedThreadPool(
+      new NamingThreadFactory(new DaemonThreadFactory(), "CloudTest target start"));
+    try
+    {
+      List<Future<Long>> futures = new ArrayList<Future<Long>>();
+      List<FilePath> results = new ArrayList<FilePath>();
+      for (CloudTarget target : targets)
+      {
+        String command = target.getType().getCommand();
+        ArgumentListBuilder args = base.clone();
+        args.add("cmd=" + command, "wait=true", "format=xml")
+            .add("name=" + target.getName());
+        if (timeOut >= 0)
+        {
+          args.add("timeout=" + timeOut);
+        }
+
+        // Same place as the single target steps put it.
+        String fileName = target.getName() + ".xml";
+        if (fileName.startsWith("/"))
+        {
+          fileName = fileName.substring(1);
+        }
+        FilePath xml = workspace.child("." + command).child(fileName);
+        xml.getParent().mkdirs();
+        results.add(xml);
+
+        final long start = System.currentTimeMillis();
+        final OutputStream out = xml.write();
+        final Proc proc;
+        try
+        {
+          proc = launcher.launch()
+              .cmds(args)
+              .pwd(workspace)
+              .stdout(out)
+              .stderr(listener.getLogger())
+              .start();
+        }
+        catch (IOException e)
+        {
+          out.close();
+          throw e;
+        }
+
+        futures.add(executor.submit(new Callable<Long>()
+        {
+          public Long call() throws IOException, InterruptedException
+          {
+            try
+            {
+              if (deadline == Long.MAX_VALUE)
+              {
+                proc.join();
+              }
+              else
+              {
+                proc.joinWithTimeout(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS, listener);
+              }
+            }
+            finally
+            {
+              out.close();
+            }
+            return System.currentTimeMillis() - start;
+          }
+        }));
+      }
+
+      List<String> failed = new ArrayList<String>();
+      for (int i = 0; i < targets.size(); i++)
+      {
+        long time;
+        try
+        {
+          time = futures.get(i).get();
+        }
+        catch (ExecutionException e)
+        {
+          throw new IOException("Failed to start " + targets.get(i), e.getCause());
+        }
+
+        CloudStatus status = readStatus(results.get(i));
+        listener.getLogger().println(String.format("%s: %s after %d seconds",
+          targets.get(i), status == null ? "no status" : status.name(), TimeUnit.MILLISECONDS.toSeconds(time)));
+        if (status != CloudStatus.READY)
+        {
+          failed.add(targets.get(i).toString());
+        }
+      }
+
+      if (!failed.isEmpty())
+      {
+        throw new AbortException("Not ready: " + failed);
+      }
+    }
+    finally
+    {
+      // Kills anything still running if we were interrupted.
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Reads the status SCommand wrote out.
+   * @return the status, or {@code null} if there isn't one (or it isn't known).
+   */
+  static CloudStatus readStatus(FilePath xml) throws IOException, InterruptedException
+  {
+    if (!xml.exists() || xml.length() == 0)
+    {
+      return null;
+    }
+
+    InputStream in = xml.read();
+    try
+    {
+      Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+      NodeList list = doc.getElementsByTagName("Status");
+      if (list.getLength() == 0)
+      {
+        return null;
+      }
+      return CloudStatus.valueOf(list.item(0).getTextContent().trim());
+    }
+    catch (Exception e)
+    {
+      // Not XML, or not a status we know.
+      return null;
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+}
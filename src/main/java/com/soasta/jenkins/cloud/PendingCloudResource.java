@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2013, SOASTA, Inc.
+ * All Rights Reserved.
+ */
+package com.soasta.jenkins.cloud;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A grid, RSDB or test environment that a build started without waiting for it,
+ * until an {@link com.soasta.jenkins.cloud.build.AwaitCloudResource} step waits for it.
+ * <p>
+ * The SCommand process only lives as long as Jenkins does.  If Jenkins is restarted
+ * in between, waiting runs the (blocking) start command again instead.
+ */
+public class PendingCloudResource extends InvisibleAction
+{
+  private final String url;
+  private final String cloudTestServerID;
+  private final String command;
+  private final String name;
+  private final int timeOut;
+  private final CloudStatus successStatus;
+  /**
+   * Where SCommand writes its output, relative to the workspace.
+   */
+  private final String resultFile;
+  private final long started;
+
+  private transient Proc proc;
+  private transient OutputStream out;
+  private transient FilePath xml;
+
+  private boolean done;
+  private CloudStatus status;
+
+  public PendingCloudResource(String url, String cloudTestServerID, String command, String name, int timeOut,
+      CloudStatus successStatus, String resultFile, FilePath xml, Proc proc, OutputStream out)
+  {
+    this.url = url;
+    this.cloudTestServerID = cloudTestServerID;
+    this.command = command;
+    this.name = name;
+    this.timeOut = timeOut;
+    this.successStatus = successStatus;
+    this.resultFile = resultFile;
+    this.started = System.currentTimeMillis();
+    this.xml = xml;
+    this.proc = proc;
+    this.out = out;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public String getCommand()
+  {
+    return command;
+  }
+
+  /**
+   * Whether it has been waited for already.
+   */
+  public synchronized boolean isDone()
+  {
+    return done;
+  }
+
+  /**
+   * Returns the status it ended up in, once it has been waited for.
+   */
+  public synchronized CloudStatus getStatus()
+  {
+    return status;
+  }
+
+  @Override
+  public String toString()
+  {
+    return command + " " + name;
+  }
+
+  /**
+   * Waits until SCommand is done.
+   * @throws AbortException if it didn't end up in the expected status.
+   */
+  public synchronized void await(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException
+  {
+    if (done)
+    {
+      return;
+    }
+
+    long start = System.currentTimeMillis();
+    if (proc != null)
+    {
+      try
+      {
+        proc.join();
+      }
+      finally
+      {
+        out.close();
+      }
+    }
+    else
+    {
+      // Jenkins was restarted since it was started, so start it again (which is harmless if it's
+      // already starting or ready) and wait this time.
+      listener.getLogger().println("Lost track of " + this + " (was Jenkins restarted?), so running it again");
+      ArgumentListBuilder args = new CloudCommandBuilder()
+        .setWorkspace(workspace)
+        .setUrl(url)
+        .setListener(listener)
+        .setCloudTestServerID(cloudTestServerID)
+        .build();
+      args.add("cmd=" + command, "wait=true", "format=xml")
+          .add("name=" + name);
+      if (timeOut >= 0)
+      {
+        args.add("timeout=" + timeOut);
+      }
+
+      xml = workspace.child(resultFile);
+      xml.getParent().mkdirs();
+      OutputStream out = xml.write();
+      try
+      {
+        launcher.launch()
+            .cmds(args)
+            .pwd(workspace)
+            .stdout(out)
+            .stderr(listener.getLogger())
+            .join();
+      }
+      finally
+      {
+        out.close();
+      }
+    }
+
+    status = CloudTargetStarter.readStatus(xml);
+    done = true;
+    proc = null;
+    run.save();
+
+    long now = System.currentTimeMillis();
+    listener.getLogger().println(String.format("%s: %s after waiting %d seconds (%d seconds since it was started)",
+      this, status == null ? "no status" : status.name(),
+      TimeUnit.MILLISECONDS.toSeconds(now - start), TimeUnit.MILLISECONDS.toSeconds(now - started)));
+    if (status != successStatus)
+    {
+      throw new AbortException(this + " did not end up " + successStatus);
+    }
+  }
+
+  /**
+   * Stops the SCommand processes that a build started and never waited for.
+   */
+  @Extension
+  public static class Cleanup extends RunListener<Run<?, ?>>
+  {
+    @Override
+    public void onCompleted(Run<?, ?> run, TaskListener listener)
+    {
+      for (PendingCloudResource resource : run.getActions(PendingCloudResource.class))
+      {
+        synchronized (resource)
+        {
+          if (resource.done || resource.proc == null)
+          {
+            continue;
+          }
+          listener.getLogger().println("Nothing waited for " + resource + ", so stopping SCommand"
+            + " (the server may still finish starting it)");
+          try
+          {
+            resource.proc.kill();
+            resource.out.close();
+          }
+          catch (IOException e)
+          {
+            e.printStackTrace(listener.error("Failed to stop SCommand"));
+          }
+          catch (InterruptedException e)
+          {
+            Thread.currentThread().interrupt();
+          }
+          resource.proc = null;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2013, SOASTA, Inc.
+ * All Rights Reserved.
+ */
+package com.soasta.jenkins.cloud.build;
+
+import java.io.IOException;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Builder;
+import jenkins.tasks.SimpleBuildStep;
+
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.soasta.jenkins.cloud.PendingCloudResource;
+
+/**
+ * Waits for grids, RSDBs or test environments that were started in the background
+ * earlier in the build, so that they are provisioned while the build does other things.
+ */
+public class AwaitCloudResource extends Builder implements SimpleBuildStep
+{
+  /**
+   * Name of the resource to wait for, or {@code null} for all of them.
+   */
+  private final String name;
+
+  @DataBoundConstructor
+  public AwaitCloudResource(String name)
+  {
+    this.name = Util.fixEmptyAndTrim(name);
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  @Override
+  public void perform(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener) throws InterruptedException, IOException
+  {
+    boolean found = false;
+    for (PendingCloudResource resource : run.getActions(PendingCloudResource.class))
+    {
+      if (name == null || name.equals(resource.getName()))
+      {
+        found = true;
+        resource.await(run, workspace, launcher, listener);
+      }
+    }
+    if (!found)
+    {
+      throw new AbortException(name == null ? "Nothing was started in the background." : name + " wasn't started in the background.");
+    }
+  }
+
+  @Override
+  public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+    FilePath filePath = build.getWorkspace();
+    if(filePath == null) {
+        return false;
+    } else {
+        perform(build, filePath, launcher, listener);
+        return true;
+    }
+  }
+
+  @Override
+  public BuildStepMonitor getRequiredMonitorService()
+  {
+    return BuildStepMonitor.NONE;
+  }
+
+  @Extension
+  @Symbol("awaitCloudResource")
+  public static class DescriptorImpl extends BuildStepDescriptor<Builder>
+  {
+      @Override
+      public boolean isApplicable(Class<? extends AbstractProject> jobType)
+      {
+          return true;
+      }
+
+      @Override
+      public String getDisplayName()
+      {
+          return "Await CloudTest Resource";
+      }
+  }
+}
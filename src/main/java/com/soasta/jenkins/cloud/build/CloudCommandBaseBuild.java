@@ -5,6 +5,7 @@ import java.io.IOException;
 
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Proc;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.Run;
@@ -12,11 +13,13 @@ import hudson.model.TaskListener;
 import hudson.util.ArgumentListBuilder;
 import jenkins.tasks.SimpleBuildStep;
 
+import org.kohsuke.stapler.DataBoundSetter;
 import org.w3c.dom.*;
 import org.xml.sax.InputSource;
 
 import com.soasta.jenkins.cloud.CloudCommandBuilder;
 import com.soasta.jenkins.cloud.CloudStatus;
+import com.soasta.jenkins.cloud.PendingCloudResource;
 
 import javax.xml.parsers.*;
 import java.io.*;
@@ -30,6 +33,10 @@ public abstract class CloudCommandBaseBuild extends Builder implements SimpleBui
   private final String cloudTestServerID;
   private final String url;
   private final int timeOut; 
+  /**
+   * Whether to start it in the background, and leave the waiting to an {@link AwaitCloudResource} step.
+   */
+  private boolean async;
 
   public CloudCommandBaseBuild(String url, String cloudTestServerID, String name)
   {
@@ -79,6 +86,17 @@ public abstract class CloudCommandBaseBuild extends Builder implements SimpleBui
   {
     return timeOut;
   }
+
+  public boolean isAsync()
+  {
+    return async;
+  }
+
+  @DataBoundSetter
+  public void setAsync(boolean async)
+  {
+    this.async = async;
+  }
   
   @Override 
   public void perform(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener) throws InterruptedException, IOException {
@@ -118,6 +136,22 @@ public abstract class CloudCommandBaseBuild extends Builder implements SimpleBui
       // Make sure the directory exists.
       xml.getParent().mkdirs();
 
+      if (async)
+      {
+        OutputStream out = xml.write();
+        Proc proc = launcher.launch()
+            .cmds(args)
+            .pwd(workspace)
+            .stdout(out)
+            .stderr(listener.getLogger())
+            .start();
+        run.addAction(new PendingCloudResource(url, cloudTestServerID, command, name, timeOut,
+            getSuccessStatus(), fileName, xml, proc, out));
+        run.save();
+        listener.getLogger().println("Started " + command + " " + name + " in the background");
+        return;
+      }
+
       // Run it!
       launcher.launch()
           .cmds(args)
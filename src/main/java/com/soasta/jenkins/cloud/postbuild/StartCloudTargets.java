@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2013, SOASTA, Inc.
+ * All Rights Reserved.
+ */
+package com.soasta.jenkins.cloud.postbuild;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Recorder;
+import jenkins.tasks.SimpleBuildStep;
+
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.soasta.jenkins.cloud.CloudTarget;
+import com.soasta.jenkins.cloud.CloudTargetStarter;
+
+/**
+ * Starts several grids, RSDBs and test environments at once.
+ */
+public class StartCloudTargets extends Recorder implements SimpleBuildStep
+{
+  private final String url;
+  private final String cloudTestServerID;
+  private final List<CloudTarget> targets;
+  private final int timeOut;
+
+  @DataBoundConstructor
+  public StartCloudTargets(String url, String cloudTestServerID, List<CloudTarget> targets, int timeOut)
+  {
+    this.url = url;
+    this.cloudTestServerID = cloudTestServerID;
+    this.targets = targets == null ? Collections.<CloudTarget>emptyList() : new ArrayList<CloudTarget>(targets);
+    String duplicate = CloudTargetStarter.findDuplicate(this.targets);
+    if (duplicate != null)
+    {
+      throw new IllegalArgumentException(duplicate + " is listed more than once");
+    }
+    // timeout wasn't specifed in the UI, use a default value
+    this.timeOut = timeOut == 0 ? CloudTargetStarter.getDefaultTimeout(this.targets) : timeOut;
+  }
+
+  public final String getUrl()
+  {
+    return url;
+  }
+
+  public String getCloudTestServerID()
+  {
+    return cloudTestServerID;
+  }
+
+  public List<CloudTarget> getTargets()
+  {
+    return Collections.unmodifiableList(targets);
+  }
+
+  public final int getTimeOut()
+  {
+    return timeOut;
+  }
+
+  @Override
+  public void perform(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener) throws InterruptedException, IOException
+  {
+    CloudTargetStarter.start(workspace, launcher, listener, url, cloudTestServerID, targets, timeOut);
+  }
+
+  @Override
+  public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+    FilePath filePath = build.getWorkspace();
+    if(filePath == null) {
+        return false;
+    } else {
+        perform(build, filePath, launcher, listener);
+        return true;
+    }
+  }
+
+  @Override
+  public BuildStepMonitor getRequiredMonitorService()
+  {
+    return BuildStepMonitor.NONE;
+  }
+
+  @Extension
+  @Symbol("startCloudTargets")
+  public static class DescriptorImpl extends AbstractCloudCommandPostBuildDescriptor
+  {
+      @Override
+      public String getDisplayName()
+      {
+          return "Start Grids, RSDBs and Test Environments";
+      }
+  }
+}
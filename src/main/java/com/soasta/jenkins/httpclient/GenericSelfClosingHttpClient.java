@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,6 +19,7 @@ import org.apache.http.HttpResponse;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
@@ -29,6 +31,7 @@ import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.util.EntityUtils;
 
 import com.soasta.jenkins.ProxyChecker;
@@ -39,7 +42,12 @@ import jenkins.model.Jenkins;
 public class GenericSelfClosingHttpClient
 {
   private static Logger m_log = Logger.getLogger(GenericSelfClosingHttpClient.class.getName());
+  /**
+   * How long a pooled connection may sit idle before it is closed.
+   */
+  private static final long IDLE_CONNECTION_TIMEOUT_SECONDS = 60;
   private CloseableHttpClient m_client; 
+  private PoolingHttpClientConnectionManager m_pool;
   private boolean m_closeAfterUse = true;
   
   /**
@@ -93,6 +101,28 @@ public class GenericSelfClosingHttpClient
     }
   }
   
+  /**
+   * Sends the request and lets the handler process the response, which is then released
+   * (for pooled clients, the connection is returned to the pool).
+   * Unlike {@link #sendRequest(HttpUriRequest)}, the status code is left to the handler.
+   */
+  public <T> T sendRequest(HttpUriRequest httpRequest, ResponseHandler<? extends T> responseHandler) throws IOException
+  {
+    // Jira Bug JENKINS-21033: Changing the User-Agent from "Java/<Java version #>" to "Jenkins/<Jenkins version #>"
+    httpRequest.addHeader("User-Agent", "Jenkins/" + Jenkins.getVersion().toString());
+    try
+    {
+      return m_client.execute(httpRequest, responseHandler);
+    }
+    finally
+    {
+      if (m_closeAfterUse)
+      {
+        m_client.close();
+      }
+    }
+  }
+  
   /**
    * Returns the character set to use when reading responses, if the response does not specify a character set
    * in the "Content-Type" header. 
@@ -120,6 +150,14 @@ public class GenericSelfClosingHttpClient
     m_client.close();
   }
   
+  /**
+   * Returns the connection pool statistics, or {@code null} if this client does not pool connections.
+   */
+  public PoolStats getPoolStats()
+  {
+    return m_pool == null ? null : m_pool.getTotalStats();
+  }
+  
   private void buildClient(HttpClientSettings settings)
   {
     HttpClientBuilder builder = HttpClientBuilder.create();
@@ -143,8 +181,22 @@ public class GenericSelfClosingHttpClient
       builder.setSSLSocketFactory(sslConnectionFactory);
       schemeRegistryBuilder.register("https", sslConnectionFactory);
       
-      BasicHttpClientConnectionManager connectionManager = new BasicHttpClientConnectionManager(schemeRegistryBuilder.build());
-      builder.setConnectionManager(connectionManager);
+      if (settings.getMaxConnections() > 0)
+      {
+        // Keep connections alive and share them between threads.
+        m_pool = new PoolingHttpClientConnectionManager(schemeRegistryBuilder.build());
+        m_pool.setMaxTotal(settings.getMaxConnections());
+        m_pool.setDefaultMaxPerRoute(settings.getMaxConnectionsPerRoute() > 0 ? 
+          settings.getMaxConnectionsPerRoute() : settings.getMaxConnections());
+        builder.setConnectionManager(m_pool);
+        builder.evictExpiredConnections();
+        builder.evictIdleConnections(IDLE_CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      }
+      else
+      {
+        BasicHttpClientConnectionManager connectionManager = new BasicHttpClientConnectionManager(schemeRegistryBuilder.build());
+        builder.setConnectionManager(connectionManager);
+      }
     }
     catch (Exception e)
     {
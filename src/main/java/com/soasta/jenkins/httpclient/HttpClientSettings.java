@@ -11,6 +11,8 @@ public class HttpClientSettings
   private String keyStorePassword;
   private boolean trustSelfSigned;
   private String url;
+  private int maxConnections;
+  private int maxConnectionsPerRoute;
   
   public KeyStore getKeyStore()
   {
@@ -75,4 +77,26 @@ public class HttpClientSettings
     this.url = url;
     return this;
   }
+  public int getMaxConnections()
+  {
+    return maxConnections;
+  }
+  /**
+   * Keeps up to this many connections open for reuse (0, the default,
+   * means a single connection that is not shared between threads).
+   */
+  public HttpClientSettings setMaxConnections(int maxConnections)
+  {
+    this.maxConnections = maxConnections;
+    return this;
+  }
+  public int getMaxConnectionsPerRoute()
+  {
+    return maxConnectionsPerRoute;
+  }
+  public HttpClientSettings setMaxConnectionsPerRoute(int maxConnectionsPerRoute)
+  {
+    this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    return this;
+  }
 }
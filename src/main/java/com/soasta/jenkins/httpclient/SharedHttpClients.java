@@ -0,0 +1,181 @@
+package com.soasta.jenkins.httpclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Long-lived, pooled HTTP clients, one per key (e.g. one per CloudTest server).
+ * A client is rebuilt only when the configuration it was built from changes.
+ * Callers {@linkplain #acquire acquire} a {@link Lease} for each use, so that
+ * a client is never closed while a request is still using it.
+ */
+public final class SharedHttpClients
+{
+  private static final Logger m_log = Logger.getLogger(SharedHttpClients.class.getName());
+
+  /**
+   * Maximum number of pooled connections per client.
+   */
+  public static final int MAX_CONNECTIONS = Integer.getInteger(SharedHttpClients.class.getName() + ".maxConnections", 20);
+
+  /**
+   * Maximum number of pooled connections per client to any one host.
+   */
+  public static final int MAX_CONNECTIONS_PER_ROUTE = Integer.getInteger(SharedHttpClients.class.getName() + ".maxConnectionsPerRoute", 10);
+
+  private static final Map<String, Entry> m_clients = new HashMap<String, Entry>();
+
+  /**
+   * Creates the settings for a new client; only called when a client needs to be (re)built.
+   */
+  public interface SettingsFactory
+  {
+    HttpClientSettings create() throws IOException;
+  }
+
+  private SharedHttpClients()
+  {
+  }
+
+  /**
+   * The use of a shared client by one caller, which must be {@linkplain #close() closed} when done.
+   * A client that has been replaced (or whose key was removed) is only closed once every
+   * caller that was still using it is done with it.
+   */
+  public static final class Lease implements Closeable
+  {
+    private final Entry m_entry;
+    private boolean m_closed;
+
+    private Lease(Entry entry)
+    {
+      m_entry = entry;
+    }
+
+    public GenericSelfClosingHttpClient getClient()
+    {
+      return m_entry.m_client;
+    }
+
+    public void close()
+    {
+      synchronized (SharedHttpClients.class)
+      {
+        if (!m_closed)
+        {
+          m_closed = true;
+          m_entry.m_users--;
+          if (m_entry.m_retired && m_entry.m_users == 0)
+          {
+            SharedHttpClients.close(m_entry);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a lease on the shared client for the given key, building a new client if there is none yet,
+   * or if the existing one was built from a different configuration.
+   * @param configuration a string that changes whenever the client's settings change.
+   */
+  public static synchronized Lease acquire(String key, String configuration, SettingsFactory factory) throws IOException
+  {
+    Entry entry = m_clients.get(key);
+    if (entry == null || !entry.m_configuration.equals(configuration))
+    {
+      if (entry != null)
+      {
+        m_log.log(Level.FINE, "Configuration of HTTP client {0} changed; rebuilding it.", key);
+        retire(entry);
+      }
+
+      HttpClientSettings settings = factory.create()
+        .setMaxConnections(MAX_CONNECTIONS)
+        .setMaxConnectionsPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+      entry = new Entry(configuration, new GenericSelfClosingHttpClient(settings, false));
+      m_clients.put(key, entry);
+    }
+
+    entry.m_users++;
+    return new Lease(entry);
+  }
+
+  /**
+   * Returns the connection pool statistics of the client for the given key, or {@code null} if there is none.
+   */
+  public static synchronized PoolStats getPoolStats(String key)
+  {
+    Entry entry = m_clients.get(key);
+    return entry == null ? null : entry.m_client.getPoolStats();
+  }
+
+  /**
+   * Closes and forgets the clients of any key not in the given collection.
+   */
+  public static synchronized void retainAll(Collection<String> keys)
+  {
+    for (Iterator<Map.Entry<String, Entry>> it = m_clients.entrySet().iterator(); it.hasNext();)
+    {
+      Map.Entry<String, Entry> e = it.next();
+      if (!keys.contains(e.getKey()))
+      {
+        retire(e.getValue());
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Closes a client that is no longer shared, now if nobody is using it,
+   * or else when the last {@link Lease} on it is closed.
+   */
+  private static void retire(Entry entry)
+  {
+    entry.m_retired = true;
+    if (entry.m_users == 0)
+    {
+      close(entry);
+    }
+  }
+
+  private static void close(Entry entry)
+  {
+    try
+    {
+      entry.m_client.close();
+    }
+    catch (IOException e)
+    {
+      m_log.log(Level.WARNING, "Error closing HTTP client", e);
+    }
+  }
+
+  private static final class Entry
+  {
+    private final String m_configuration;
+    private final GenericSelfClosingHttpClient m_client;
+    /**
+     * Number of open leases.
+     */
+    private int m_users;
+    /**
+     * Whether it has been replaced or removed (and should be closed once unused).
+     */
+    private boolean m_retired;
+
+    Entry(String configuration, GenericSelfClosingHttpClient client)
+    {
+      m_configuration = configuration;
+      m_client = client;
+    }
+  }
+}
@@ -10,4 +10,19 @@ f.section(title:"CloudTest Servers") {
     f.block {
         f.repeatableProperty(field:"servers")
     }
+    f.optionalBlock(field:"prewarm", title:"Install CloudTest tools on agents as soon as a server is upgraded") {
+        f.entry(title:"Agents", field:"prewarmLabel",
+                description:"Label expression of the agents to install on. Leave empty for all agents.") {
+            f.textbox()
+        }
+        f.entry(field:"prewarmMakeAppTouchTestable") {
+            f.checkbox(title:"Also install MakeAppTouchTestable")
+        }
+        f.entry(field:"prewarmIOSAppInstaller") {
+            f.checkbox(title:"Also install iOS App Installer")
+        }
+        f.entry(title:"Concurrent installations", field:"prewarmThreads") {
+            f.number(clazz:"positive-number", min:1, default:2)
+        }
+    }
 }
\ No newline at end of file
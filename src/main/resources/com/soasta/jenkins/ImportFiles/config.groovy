@@ -15,6 +15,15 @@ f.advanced {
     f.entry(title:"Excludes",field:"excludes") {
         f.textbox()
     }
+    f.entry(title:"Incremental",field:"incremental") {
+        f.checkbox(title:"Only import files that changed since the last successful import")
+    }
+    f.entry(title:"Bundle",field:"bundle") {
+        f.checkbox(title:"Zip the files up and import them in a single request")
+    }
+    f.entry(title:"Parallel imports",field:"parallelism") {
+        f.number(clazz:"positive-number", min:1, default:1)
+    }
     f.entry(title:"Additional Options",field:"additionalOptions") {
         f.expandableTextbox()
     }
@@ -28,4 +28,12 @@ f.advanced {
   f.entry(title:"Generate CSV for Plot Plugin",field:"generatePlotCSV") {
       f.checkbox()
   }
+
+  f.entry(title:"Max concurrent compositions",field:"maxConcurrentCompositions") {
+    f.number(default:1)
+  }
+
+  f.entry(title:"Play compositions in a single SCommand process",field:"batchCompositions") {
+    f.checkbox()
+  }
 }
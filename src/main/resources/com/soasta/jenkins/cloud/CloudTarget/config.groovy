@@ -0,0 +1,16 @@
+package com.soasta.jenkins.cloud.CloudTarget;
+
+def f = namespace(lib.FormTagLib)
+
+f.entry(title:"Type",field:"type") {
+  f.select()
+}
+f.entry(title:"Name",field:"name") {
+  f.textbox()
+}
+
+f.entry {
+  div(align:"left") {
+    input(type:"button",value:"Delete",class:"repeatable-delete")
+  }
+}
@@ -0,0 +1,7 @@
+package com.soasta.jenkins.AwaitCloudResource;
+
+f=namespace(lib.FormTagLib)
+
+f.entry(title:"Name",field:"name") {
+    f.textbox()
+}
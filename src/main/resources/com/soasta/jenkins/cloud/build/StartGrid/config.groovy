@@ -14,4 +14,8 @@ f.advanced {
   f.entry(title:"Seconds to wait until in ready status ",field:"timeOut") {
     f.number()
   }
+
+  f.entry(title:"Start in the background",field:"async") {
+    f.checkbox()
+  }
 }
\ No newline at end of file
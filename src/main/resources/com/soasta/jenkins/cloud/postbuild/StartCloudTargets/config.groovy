@@ -0,0 +1,17 @@
+package com.soasta.jenkins.StartCloudTargets;
+
+f=namespace(lib.FormTagLib)
+
+f.entry(title:"CloudTest Server",field:"cloudTestServerID") {
+    f.select()
+}
+f.entry(title:"Targets") {
+    f.repeatableProperty(field:"targets", add:"Add Target")
+}
+
+f.advanced {
+
+  f.entry(title:"Seconds to wait until all are in ready status ",field:"timeOut") {
+    f.number()
+  }
+}
@@ -0,0 +1,84 @@
+package com.soasta.jenkins;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+public class BuildNumberExtractorTest extends TestCase {
+    public void testExtract() throws IOException {
+        assertEquals("7.4.1.1234", BuildNumberExtractor.extract(new StringReader(
+            "<!DOCTYPE html>\n<html><head>\n<title>CloudTest</title>\n" +
+            "<meta http-equiv='Content-Type' content='text/html'>\n" +
+            "<META NAME=\"buildnumber\" CONTENT=\"7.4.1.1234\" />\n" +
+            "</head><body></body></html>")));
+    }
+
+    public void testUnquotedAndReordered() throws IOException {
+        assertEquals("57.12", BuildNumberExtractor.extract(new StringReader(
+            "<html><head><meta content=57.12 name=buildnumber></head></html>")));
+    }
+
+    public void testIgnoresCommentsAndScripts() throws IOException {
+        assertEquals("2", BuildNumberExtractor.extract(new StringReader(
+            "<html><head><!-- <meta name=\"buildnumber\" content=\"0\"> -->" +
+            "<script>if (a > b) document.write('<body><meta name=\"buildnumber\" content=\"1\">');</script>" +
+            "<meta name=\"buildnumber\" content=\"2\"></head></html>")));
+    }
+
+    public void testCommentsWithQuotes() throws IOException {
+        assertEquals("5", BuildNumberExtractor.extract(new StringReader(
+            "<html><head><!-- don't cache --><meta name=\"buildnumber\" content=\"5\"></head></html>")));
+        assertEquals("6", BuildNumberExtractor.extract(new StringReader(
+            "<html><head><!-- a \"quote --><!----><meta name=\"buildnumber\" content=\"6\"></head></html>")));
+    }
+
+    public void testLongComment() throws IOException {
+        // Longer than any tag that's kept, with no '>' before its end.
+        StringBuilder comment = new StringBuilder("<!-- ");
+        while (comment.length() < 10000) {
+            comment.append("lorem ipsum ");
+        }
+        comment.append("-->");
+        assertEquals("7", BuildNumberExtractor.extract(new StringReader(
+            "<html><head>" + comment + "<meta name=\"buildnumber\" content=\"7\"><!-- next --></head></html>")));
+    }
+
+    public void testStopsAtBody() throws IOException {
+        CountingReader in = new CountingReader(
+            "<html><head><title>x</title></head><body><meta name=\"buildnumber\" content=\"3\"></body></html>");
+        assertNull(BuildNumberExtractor.extract(in));
+        // Nothing after the end of the head was read.
+        assertEquals("<html><head><title>x</title></head>".length(), in.count);
+    }
+
+    public void testStopsAtBuildNumber() throws IOException {
+        String head = "<html><head><meta name=\"buildnumber\" content=\"4\">";
+        CountingReader in = new CountingReader(head + "<link rel=\"stylesheet\" href=\"a.css\"></head><body></body></html>");
+        assertEquals("4", BuildNumberExtractor.extract(in));
+        assertEquals(head.length(), in.count);
+    }
+
+    private static class CountingReader extends Reader {
+        private final String s;
+        private int count;
+
+        CountingReader(String s) {
+            this.s = s;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (count >= s.length()) {
+                return -1;
+            }
+            cbuf[off] = s.charAt(count++);
+            return 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
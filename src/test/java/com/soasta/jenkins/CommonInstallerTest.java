@@ -0,0 +1,213 @@
+package com.soasta.jenkins;
+
+import hudson.Functions;
+import hudson.Util;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+public class CommonInstallerTest extends TestCase {
+    /**
+     * Makes an archive with an executable, a read-only file and a directory.
+     */
+    private static byte[] zip(String comment, Zip64Mode zip64, boolean unix) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipArchiveOutputStream zip = new ZipArchiveOutputStream(bytes);
+        zip.setUseZip64(zip64);
+        if (comment != null) {
+            zip.setComment(comment);
+        }
+        add(zip, "scommand/", unix ? 040755 : -1, null);
+        add(zip, "scommand/bin/scommand", unix ? 0100755 : -1, "#!/bin/sh\necho scommand\n");
+        add(zip, "scommand/README", unix ? 0100444 : -1, "read me\n");
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    private static void add(ZipArchiveOutputStream zip, String name, int mode, String content) throws IOException {
+        ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        if (mode >= 0) {
+            entry.setUnixMode(mode);
+        } else {
+            // Made on Windows: the high bits of the external attributes mean nothing.
+            entry.setExternalAttributes(0x81ED0020L);
+        }
+        zip.putArchiveEntry(entry);
+        if (content != null) {
+            zip.write(content.getBytes("UTF-8"));
+        }
+        zip.closeArchiveEntry();
+    }
+
+    private static void assertModes(Map<String,Integer> modes) {
+        assertEquals(3, modes.size());
+        assertEquals(0755, modes.get("scommand/bin/scommand") & 0777);
+        assertEquals(0444, modes.get("scommand/README") & 0777);
+        assertEquals(0755, modes.get("scommand/") & 0777);
+    }
+
+    public void testReadUnixModes() throws Exception {
+        byte[] zip = zip(null, Zip64Mode.Never, true);
+        assertModes(CommonInstaller.Unpack.readUnixModes(zip, zip.length));
+    }
+
+    public void testReadUnixModesFromTail() throws Exception {
+        byte[] zip = zip(null, Zip64Mode.Never, true);
+        // Only the end of the archive is kept while unzipping.
+        byte[] tail = Arrays.copyOfRange(zip, zip.length - 300, zip.length);
+        assertModes(CommonInstaller.Unpack.readUnixModes(tail, zip.length));
+
+        // Not even all of the central directory.
+        tail = Arrays.copyOfRange(zip, zip.length - 60, zip.length);
+        assertTrue(CommonInstaller.Unpack.readUnixModes(tail, zip.length).isEmpty());
+    }
+
+    public void testReadUnixModesWithComment() throws Exception {
+        // A comment that has the end of central directory signature (and a fake record) in it.
+        String fake = "PK\u0005\u0006\0\0\0\0\u0001\0\u0001\0\0\0\0\0\0\0\0\0\0\0";
+        byte[] zip = zip("built by " + fake + " and then some", Zip64Mode.Never, true);
+        assertModes(CommonInstaller.Unpack.readUnixModes(zip, zip.length));
+
+        char[] longComment = new char[40000];
+        Arrays.fill(longComment, 'x');
+        zip = zip(new String(longComment), Zip64Mode.Never, true);
+        assertModes(CommonInstaller.Unpack.readUnixModes(zip, zip.length));
+    }
+
+    public void testReadUnixModesZip64() throws Exception {
+        byte[] zip = zip(null, Zip64Mode.Always, true);
+        assertModes(CommonInstaller.Unpack.readUnixModes(zip, zip.length));
+
+        // As if the central directory started past 4 GB, so only the ZIP64 record has its offset.
+        Arrays.fill(zip, zip.length - 22 + 16, zip.length - 22 + 20, (byte)0xFF);
+        assertModes(CommonInstaller.Unpack.readUnixModes(zip, zip.length));
+
+        // Without the ZIP64 records, there's no telling where it is.
+        byte[] tail = Arrays.copyOfRange(zip, zip.length - 22, zip.length);
+        assertTrue(CommonInstaller.Unpack.readUnixModes(tail, zip.length).isEmpty());
+    }
+
+    public void testReadUnixModesNotUnix() throws Exception {
+        byte[] zip = zip(null, Zip64Mode.Never, false);
+        assertTrue(CommonInstaller.Unpack.readUnixModes(zip, zip.length).isEmpty());
+    }
+
+    public void testReadUnixModesNotAnArchive() {
+        assertTrue(CommonInstaller.Unpack.readUnixModes(new byte[0], 0).isEmpty());
+        assertTrue(CommonInstaller.Unpack.readUnixModes(new byte[100], 100).isEmpty());
+    }
+
+    public void testTailInputStream() throws Exception {
+        byte[] data = new byte[10000];
+        new Random(42).nextBytes(data);
+
+        CommonInstaller.TailInputStream in = new CommonInstaller.TailInputStream(new ByteArrayInputStream(data), 1000);
+        byte[] buf = new byte[333];
+        int[] chunks = { 7, 333, 1, 0, 250 };
+        for (int i = 0; ; i++) {
+            int n;
+            if (i % 10 == 3) {
+                n = in.read();
+                if (n < 0) {
+                    break;
+                }
+            } else if (in.read(buf, 0, chunks[i % chunks.length]) < 0) {
+                break;
+            }
+        }
+        assertEquals(data.length, in.getCount());
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 9000, 10000), in.getTail()));
+
+        // Less than the buffer size.
+        in = new CommonInstaller.TailInputStream(new ByteArrayInputStream(data, 0, 10), 1000);
+        while (in.read(buf) >= 0) {
+            // keep reading
+        }
+        assertEquals(10, in.getCount());
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 0, 10), in.getTail()));
+    }
+
+    private static File unzip(byte[] zip) throws Exception {
+        File dir = File.createTempFile("unpack", "");
+        dir.delete();
+        dir.mkdirs();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            InputStream in = new ByteArrayInputStream(zip);
+            CommonInstaller.Unpack.unzip(dir, in, executor, new CommonInstaller.Unpacked());
+        } catch (Exception e) {
+            Util.deleteRecursive(dir);
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+        return dir;
+    }
+
+    public void testUnzip() throws Exception {
+        File dir = unzip(zip(null, Zip64Mode.Never, true));
+        try {
+            File scommand = new File(dir, "scommand/bin/scommand");
+            assertEquals("#!/bin/sh\necho scommand\n", new String(Files.readAllBytes(scommand.toPath()), "UTF-8"));
+            if (!Functions.isWindows()) {
+                assertEquals(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE,
+                        PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_EXECUTE,
+                        PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_EXECUTE),
+                    Files.getPosixFilePermissions(scommand.toPath()));
+                // Made executable even though the archive says it isn't.
+                assertTrue(new File(dir, "scommand/README").canExecute());
+            }
+        } finally {
+            Util.deleteRecursive(dir);
+        }
+    }
+
+    public void testUnzipWithoutModes() throws Exception {
+        File dir = unzip(zip(null, Zip64Mode.Never, false));
+        try {
+            if (!Functions.isWindows()) {
+                assertTrue(new File(dir, "scommand/bin/scommand").canExecute());
+            }
+        } finally {
+            Util.deleteRecursive(dir);
+        }
+    }
+
+    public void testUnzipOutsideOfTheDirectory() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipArchiveOutputStream zip = new ZipArchiveOutputStream(bytes);
+        add(zip, "../evil.sh", 0100755, "rm -rf /\n");
+        zip.close();
+
+        File parent = File.createTempFile("unpack", "");
+        parent.delete();
+        File dir = new File(parent, "dir");
+        dir.mkdirs();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            CommonInstaller.Unpack.unzip(dir, new ByteArrayInputStream(bytes.toByteArray()), executor, new CommonInstaller.Unpacked());
+            fail("Unzipped an entry outside of the directory");
+        } catch (IOException e) {
+            assertFalse(new File(parent, "evil.sh").exists());
+        } finally {
+            executor.shutdownNow();
+            Util.deleteRecursive(parent);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.soasta.jenkins;
+
+import hudson.Util;
+import hudson.XmlFile;
+import junit.framework.TestCase;
+
+import java.io.File;
+
+public class CompositionDurationsTest extends TestCase {
+    private File dir;
+    private XmlFile file;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("job", "");
+        dir.delete();
+        dir.mkdirs();
+        file = new XmlFile(new File(dir, "cloudtest-composition-durations.xml"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    public void testConcurrentBuildsKeepEachOthersHistory() throws Exception {
+        CompositionDurations first = CompositionDurations.load(file);
+        CompositionDurations second = CompositionDurations.load(file);
+        first.record("/a", 1000);
+        second.record("/b", 2000);
+        second.record("/a", 3000);
+        first.save();
+        second.save();
+
+        CompositionDurations reloaded = CompositionDurations.load(file);
+        // Both builds played /a, so its estimate is averaged over both.
+        assertEquals(2000, reloaded.estimate("/a"));
+        assertEquals(2000, reloaded.estimate("/b"));
+        // And the build that saved last sees what the other one recorded too.
+        assertEquals(2000, second.estimate("/a"));
+    }
+
+    public void testSaveTwice() throws Exception {
+        CompositionDurations d = CompositionDurations.load(file);
+        d.record("/a", 1000);
+        d.save();
+        d.save();
+        d.record("/a", 3000);
+        d.save();
+        assertEquals(2000, CompositionDurations.load(file).estimate("/a"));
+    }
+
+    public void testNothingRecorded() throws Exception {
+        CompositionDurations.load(file).save();
+        assertFalse(file.exists());
+    }
+}
@@ -0,0 +1,48 @@
+package com.soasta.jenkins;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class CompositionScheduleTest extends TestCase {
+    private static long minutes(long m) {
+        return TimeUnit.MINUTES.toMillis(m);
+    }
+
+    public void testLongestFirst() {
+        CompositionDurations d = new CompositionDurations();
+        d.record("/e", minutes(4));
+        d.record("/b", minutes(7));
+        d.record("/a", minutes(10));
+        d.record("/d", minutes(5));
+        d.record("/c", minutes(6));
+
+        CompositionSchedule s = new CompositionSchedule(new String[] { "/e", "/b", "/a", "/d", "/c" }, 2, d);
+        assertEquals(Arrays.asList("/a", "/b", "/c", "/d", "/e"), s.getOrder());
+        assertEquals(Arrays.asList("/a", "/d"), s.getSlots().get(0));
+        assertEquals(Arrays.asList("/b", "/c", "/e"), s.getSlots().get(1));
+        assertEquals(minutes(17), s.getEstimatedMakespan());
+    }
+
+    public void testNoHistory() {
+        CompositionDurations d = new CompositionDurations();
+        assertEquals(CompositionDurations.DEFAULT_ESTIMATE, d.estimate("/x"));
+
+        d.record("/a", minutes(2));
+        d.record("/b", minutes(4));
+        // Unknown compositions are assumed to take as long as the average one.
+        assertEquals(minutes(3), d.estimate("/x"));
+
+        // Ties keep the order the compositions were listed in.
+        CompositionSchedule s = new CompositionSchedule(new String[] { "/y", "/b", "/x", "/a" }, 3, d);
+        assertEquals(Arrays.asList("/b", "/y", "/x", "/a"), s.getOrder());
+    }
+
+    public void testRecordSmoothsDuration() {
+        CompositionDurations d = new CompositionDurations();
+        d.record("/a", minutes(10));
+        d.record("/a", minutes(20));
+        assertEquals(minutes(15), d.estimate("/a"));
+    }
+}
@@ -0,0 +1,160 @@
+package com.soasta.jenkins;
+
+import hudson.Util;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+public class ExtractSuiteDataTest extends TestCase {
+    private static final String[] SAMPLES = {
+        // Messages of every kind, in nested clips.
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<testsuite name=\"/Tests/Checkout\" url=\"http://cloudtest.example.com/concerto\" tests=\"2\" time=\"12.5\">\n"
+        + "  <testcase name=\"Checkout\" resultID=\"12345\" time=\"12.5\">\n"
+        + "    <failure message=\"1 validation failed\">Failed</failure>\n"
+        + "    <messages>\n"
+        + "      <message type=\"validation-pass\" path=\"Checkout/Login\" clipName=\"Login\">Logged in</message>\n"
+        + "      <message type=\"validation-fail\" path=\"Checkout/Cart/Add item\">Expected 200 &amp; got <![CDATA[<500>]]></message>\n"
+        + "      <message type=\"validation-pass\" clipName=\"Pay\">Paid <b>in full</b></message>\n"
+        + "      <message>No type or path, like old versions of CloudTest</message>\n"
+        + "      <message type=\"validation-pass\" path=\"\"></message>\n"
+        + "    </messages>\n"
+        + "  </testcase>\n"
+        + "  <testcase name=\"Second\" resultID=\"99999\">\n"
+        + "    <messages><message type=\"validation-fail\" path=\"Other\">Not the first test case</message></messages>\n"
+        + "  </testcase>\n"
+        + "</testsuite>\n",
+
+        // A suite with no messages.
+        "<testsuite name=\"/Tests/Empty\" url=\"http://cloudtest.example.com/concerto\">"
+        + "<testcase name=\"Empty\" resultID=\"777\"/>"
+        + "</testsuite>",
+
+        // An empty messages element, and the suites wrapped in <testsuites>.
+        "<testsuites><testsuite name=\"/Tests/Wrapped\" url=\"http://cloudtest.example.com/concerto\">"
+        + "<testcase name=\"Wrapped\" resultID=\"888\"><system-out>output</system-out><messages/></testcase>"
+        + "</testsuite></testsuites>",
+
+        // A play list.
+        "<testsuite name=\"/Tests/List\" url=\"http://cloudtest.example.com/concerto\"><testcase name=\"List\" resultID=\"NA\"/></testsuite>",
+
+        // No URL.
+        "<testsuite name=\"/Tests/NoURL\"><testcase name=\"NoURL\" resultID=\"1\">"
+        + "<messages><message type=\"validation-pass\" path=\"A/B/C/D\">Deep</message></messages></testcase></testsuite>",
+
+        // Not from CloudTest.
+        "<testsuite name=\"Other\"><testcase name=\"a\" classname=\"Other\"/></testsuite>",
+        "<testsuite name=\"Other\"><testcase name=\"a\" resultID=\"  \"/></testsuite>",
+    };
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("workspace", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    public void testSameAsXPath() throws Exception {
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < SAMPLES.length; i++) {
+            paths.add("results/TEST-" + i + ".xml");
+            FileUtils.writeStringToFile(new File(dir, paths.get(i)), SAMPLES[i], "UTF-8");
+        }
+
+        List<JunitResultPublisher.SuiteData> actual = new JunitResultPublisher.ExtractSuiteData(paths, 2).invoke(dir, null);
+        assertEquals(SAMPLES.length, actual.size());
+        for (int i = 0; i < SAMPLES.length; i++) {
+            JunitResultPublisher.SuiteData expected = extractWithXPath(new File(dir, paths.get(i)));
+            assertSame(paths.get(i), expected, actual.get(i));
+        }
+
+        // And the samples do cover what they're meant to.
+        assertEquals(5, actual.get(0).messages.size());
+        assertEquals("Checkout/Cart/Add item", actual.get(0).messages.get(1).getClipName());
+        assertEquals("Expected 200 & got <500>", actual.get(0).messages.get(1).getContent());
+        assertTrue(actual.get(1).messages.isEmpty());
+        assertNull(actual.get(5).resultID);
+    }
+
+    public void testNotXml() throws Exception {
+        FileUtils.writeStringToFile(new File(dir, "broken.xml"), "<testsuite><testcase", "UTF-8");
+        List<JunitResultPublisher.SuiteData> actual = new JunitResultPublisher.ExtractSuiteData(Arrays.asList("broken.xml"), 1).invoke(dir, null);
+        assertNotNull(actual.get(0).error);
+    }
+
+    private static void assertSame(String file, JunitResultPublisher.SuiteData expected, JunitResultPublisher.SuiteData actual) {
+        assertNull(actual.error);
+        // The publisher treats a blank result ID like none at all.
+        assertEquals(file, blankToNull(expected.resultID), blankToNull(actual.resultID));
+        if (blankToNull(expected.resultID) == null) {
+            return;
+        }
+        assertEquals(file, expected.url, actual.url);
+        assertEquals(file, expected.messages.size(), actual.messages.size());
+        for (int i = 0; i < expected.messages.size(); i++) {
+            Message e = expected.messages.get(i);
+            Message a = actual.messages.get(i);
+            assertEquals(file, e.getType(), a.getType());
+            assertEquals(file, e.getClipName(), a.getClipName());
+            assertEquals(file, e.getContent(), a.getContent());
+        }
+    }
+
+    private static String blankToNull(String s) {
+        return s == null || s.trim().length() == 0 ? null : s;
+    }
+
+    /**
+     * How the data used to be extracted.
+     */
+    private static JunitResultPublisher.SuiteData extractWithXPath(File file) throws Exception {
+        JunitResultPublisher.SuiteData suite = new JunitResultPublisher.SuiteData();
+        Document junitXML = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+        XPath xPath = XPathFactory.newInstance().newXPath();
+
+        suite.resultID = (String)xPath.evaluate("//testcase[1]/@resultID", junitXML, XPathConstants.STRING);
+        if (suite.resultID == null || suite.resultID.trim().length() == 0) {
+            return suite;
+        }
+        suite.url = (String)xPath.evaluate("//testsuite/@url", junitXML, XPathConstants.STRING);
+
+        NodeList messageNodes = (NodeList)xPath.evaluate("//testcase[1]/messages/message", junitXML, XPathConstants.NODESET);
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < messageNodes.getLength(); i++) {
+            Node messageNode = messageNodes.item(i);
+            String type = getAttribute(messageNode, "type");
+            String path = getAttribute(messageNode, "path");
+            if (path == null) {
+                path = getAttribute(messageNode, "clipName");
+            }
+            messages.add(new Message(type, path, messageNode.getTextContent()));
+        }
+        suite.messages = messages;
+        return suite;
+    }
+
+    private static String getAttribute(Node node, String name) {
+        Node value = node.getAttributes().getNamedItem(name);
+        return value == null ? null : value.getNodeValue();
+    }
+}
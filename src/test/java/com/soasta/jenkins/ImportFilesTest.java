@@ -0,0 +1,138 @@
+package com.soasta.jenkins;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class ImportFilesTest extends TestCase {
+    private static Map<String,String> hashes(String... pathsAndHashes) {
+        Map<String,String> hashes = new TreeMap<String,String>();
+        for (int i = 0; i < pathsAndHashes.length; i += 2) {
+            hashes.put(pathsAndHashes[i], pathsAndHashes[i + 1]);
+        }
+        return hashes;
+    }
+
+    public void testManifestRoundTrip() throws Exception {
+        File manifest = File.createTempFile("cloudtest-import", ".txt");
+        try {
+            Map<String,String> hashes = hashes("a.xml", "aaaa", "dir/with space.xml", "bbbb");
+            ImportFiles.writeManifest(manifest, hashes);
+            assertEquals(hashes, ImportFiles.readManifest(manifest));
+        } finally {
+            manifest.delete();
+        }
+    }
+
+    public void testNoManifestYet() throws Exception {
+        File manifest = new File(System.getProperty("java.io.tmpdir"), "cloudtest-import-missing.txt");
+        manifest.delete();
+        Map<String,String> previous = ImportFiles.readManifest(manifest);
+        assertTrue(previous.isEmpty());
+        // Everything is new.
+        assertEquals(Arrays.asList("a.xml", "b.xml"), ImportFiles.getChangedFiles(hashes("a.xml", "1", "b.xml", "2"), previous));
+    }
+
+    public void testChangedFiles() throws Exception {
+        Map<String,String> previous = hashes("unchanged.xml", "1", "changed.xml", "2", "deleted.xml", "3");
+        Map<String,String> current = hashes("unchanged.xml", "1", "changed.xml", "22", "new.xml", "4");
+
+        List<String> changed = ImportFiles.getChangedFiles(current, previous);
+        Collections.sort(changed);
+        assertEquals(Arrays.asList("changed.xml", "new.xml"), changed);
+
+        // After a successful import, deleted files drop out of the manifest.
+        File manifest = File.createTempFile("cloudtest-import", ".txt");
+        try {
+            ImportFiles.writeManifest(manifest, previous);
+            ImportFiles.writeManifest(manifest, current);
+            Map<String,String> read = ImportFiles.readManifest(manifest);
+            assertEquals(current, read);
+            assertFalse(read.containsKey("deleted.xml"));
+            assertTrue(ImportFiles.getChangedFiles(current, read).isEmpty());
+        } finally {
+            manifest.delete();
+        }
+    }
+
+    private static void assertFits(List<ImportFiles.Batch> batches, int fileCount, int maxLength) {
+        int files = 0;
+        for (ImportFiles.Batch batch : batches) {
+            assertFalse(batch.files.isEmpty());
+            assertTrue(batch.length <= maxLength);
+            files += batch.files.size();
+        }
+        assertEquals(fileCount, files);
+    }
+
+    public void testNoFiles() {
+        assertTrue(ImportFiles.makeBatches(Collections.<String>emptyList(), new long[0], 4, 100).isEmpty());
+    }
+
+    public void testMoreBatchesThanFiles() {
+        List<ImportFiles.Batch> batches = ImportFiles.makeBatches(Arrays.asList("a", "b", "c"), new long[] { 1, 2, 3 }, 10, 1000);
+        assertEquals(3, batches.size());
+        assertFits(batches, 3, 1000);
+    }
+
+    public void testLargestFilesSpreadOut() {
+        List<ImportFiles.Batch> batches = ImportFiles.makeBatches(Arrays.asList("a", "b", "c", "d", "e"),
+            new long[] { 100, 1, 60, 1, 40 }, 2, 1000);
+        assertEquals(2, batches.size());
+        assertFits(batches, 5, 1000);
+        // {a, b} and {c, d, e}: the small files even things out, and each batch is in the original order.
+        assertEquals(Arrays.asList(0, 1), batches.get(0).files);
+        assertEquals(Arrays.asList(2, 3, 4), batches.get(1).files);
+        assertEquals(101, batches.get(0).bytes);
+        assertEquals(101, batches.get(1).bytes);
+    }
+
+    public void testOneBatchKeepsTheOrder() {
+        List<ImportFiles.Batch> batches = ImportFiles.makeBatches(Arrays.asList("a", "b", "c", "d"),
+            new long[] { 1, 400, 20, 3000 }, 1, 1000);
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList(0, 1, 2, 3), batches.get(0).files);
+        assertEquals(3421, batches.get(0).bytes);
+    }
+
+    public void testFileLargerThanTheBudget() {
+        // Files too large (in bytes) for an even share go in a batch of their own.
+        List<ImportFiles.Batch> batches = ImportFiles.makeBatches(Arrays.asList("big", "a", "b"), new long[] { 1000, 1, 1 }, 2, 1000);
+        assertEquals(2, batches.size());
+        for (ImportFiles.Batch batch : batches) {
+            assertEquals(batch.bytes == 1000 ? Arrays.asList(0) : Arrays.asList(1, 2), batch.files);
+        }
+
+        // A path that doesn't fit on the command line at all still gets a batch, rather than none.
+        String path = "/" + new String(new char[200]).replace('\0', 'x');
+        batches = ImportFiles.makeBatches(Arrays.asList(path), new long[] { 1 }, 1, 100);
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList(0), batches.get(0).files);
+    }
+
+    public void testCommandLineLimit() {
+        // Even with one batch requested, the files are split so that each batch fits.
+        String[] paths = new String[100];
+        long[] sizes = new long[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = "C:\\workspace\\job\\compositions\\composition-" + i + ".xml";
+            sizes[i] = i;
+        }
+        List<ImportFiles.Batch> batches = ImportFiles.makeBatches(Arrays.asList(paths), sizes, 1, 1000);
+        assertTrue(batches.size() > 1);
+        assertFits(batches, paths.length, 1000);
+
+        // One after the other, so still in the original order.
+        int next = 0;
+        for (ImportFiles.Batch batch : batches) {
+            for (int f : batch.files) {
+                assertEquals(next++, f);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.soasta.jenkins;
+
+import hudson.Util;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+public class InstallerCacheTest extends TestCase {
+    private static final List<String> SERVERS = Arrays.asList("http://a/concerto", "http://b/concerto");
+
+    private File root;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = File.createTempFile("cloudtest-installers", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(root);
+    }
+
+    private void remember(String url, String type, String buildNumber) throws Exception {
+        InstallerCache.remember(root, url, type, buildNumber, SERVERS);
+    }
+
+    /**
+     * Puts an archive in the cache, as if it had been downloaded.
+     */
+    private File cache(String type, String buildNumber, String hash) throws Exception {
+        File archive = new File(root, "sha256/" + hash + ".zip");
+        FileUtils.writeStringToFile(archive, hash, "UTF-8");
+        FileUtils.writeStringToFile(new File(root, "index/" + type + "-" + buildNumber), hash, "UTF-8");
+        return archive;
+    }
+
+    public void testKeepsTheLastBuildsOfEachServer() throws Exception {
+        remember("http://a/concerto", "scommand", "1.0");
+        File a1 = cache("scommand", "1.0", "aaa1");
+        remember("http://b/concerto", "scommand", "1.0");
+        remember("http://a/concerto", "scommand", "2.0");
+        File a2 = cache("scommand", "2.0", "aaa2");
+
+        // Still the last two of server A (and B's only one).
+        remember("http://a/concerto", "scommand", "2.0");
+        assertTrue(a1.isFile());
+        assertTrue(a2.isFile());
+
+        remember("http://a/concerto", "scommand", "3.0");
+        File a3 = cache("scommand", "3.0", "aaa3");
+        // B still has 1.0.
+        assertTrue(a1.isFile());
+
+        remember("http://b/concerto", "scommand", "3.0");
+        assertTrue(a1.isFile());
+        // Now neither has 1.0 among its last two.
+        remember("http://b/concerto", "scommand", "2.0");
+        assertFalse(a1.isFile());
+        assertFalse(new File(root, "index/scommand-1.0").exists());
+        assertTrue(a2.isFile());
+        assertTrue(a3.isFile());
+    }
+
+    public void testInstallerTypesAreKeptSeparately() throws Exception {
+        remember("http://a/concerto", "scommand", "1.0");
+        File scommand = cache("scommand", "1.0", "aaa1");
+        remember("http://a/concerto", "iossimulator", "1.0");
+        File simulator = cache("iossimulator", "1.0", "bbb1");
+
+        remember("http://a/concerto", "iossimulator", "2.0");
+        remember("http://a/concerto", "iossimulator", "3.0");
+        assertTrue(scommand.isFile());
+        assertFalse(simulator.isFile());
+    }
+
+    public void testSharedArchive() throws Exception {
+        // Two build numbers with the same installer share its archive.
+        remember("http://a/concerto", "scommand", "1.0");
+        cache("scommand", "1.0", "same");
+        remember("http://b/concerto", "scommand", "1.1");
+        File archive = cache("scommand", "1.1", "same");
+
+        remember("http://a/concerto", "scommand", "2.0");
+        remember("http://a/concerto", "scommand", "3.0");
+        assertFalse(new File(root, "index/scommand-1.0").exists());
+        assertTrue(archive.isFile());
+    }
+
+    public void testUnknownFilesAreLeftAlone() throws Exception {
+        File download = new File(root, "sha256/download123.tmp");
+        FileUtils.writeStringToFile(download, "in progress", "UTF-8");
+        File old = cache("scommand", "0.9", "old");
+
+        remember("http://a/concerto", "scommand", "1.0");
+        assertTrue(download.isFile());
+        // Cached before servers were remembered.
+        assertFalse(old.isFile());
+    }
+
+    public void testServersNoLongerConfigured() throws Exception {
+        remember("http://a/concerto", "scommand", "1.0");
+        File a1 = cache("scommand", "1.0", "aaa1");
+        remember("http://b/concerto", "scommand", "2.0");
+        File b2 = cache("scommand", "2.0", "bbb2");
+
+        // Server B was removed; A's new build number prunes its record and archive.
+        InstallerCache.remember(root, "http://a/concerto", "scommand", "3.0", Arrays.asList("http://a/concerto"));
+        assertFalse(new File(root, "servers/" + Util.getDigestOf("http://b/concerto")).exists());
+        assertFalse(b2.isFile());
+        assertTrue(a1.isFile());
+
+        // The server being remembered is kept even if it was removed in the meantime.
+        InstallerCache.remember(root, "http://a/concerto", "scommand", "4.0", Collections.<String>emptyList());
+        assertTrue(new File(root, "servers/" + Util.getDigestOf("http://a/concerto")).isDirectory());
+    }
+}
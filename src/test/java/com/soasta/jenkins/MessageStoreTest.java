@@ -0,0 +1,197 @@
+package com.soasta.jenkins;
+
+import hudson.Util;
+import hudson.util.XStream2;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class MessageStoreTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("build", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    private static void assertMessages(List<Message> expected, List<Message> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getType(), actual.get(i).getType());
+            assertEquals(expected.get(i).getClipName(), actual.get(i).getClipName());
+            assertEquals(expected.get(i).getContent(), actual.get(i).getContent());
+        }
+    }
+
+    public void testRoundTrip() throws Exception {
+        List<Message> first = Arrays.asList(
+            new Message("validation-pass", "Checkout/Login", "Logged in"),
+            new Message("validation-fail", "Checkout/Cart/Add item", "Expected 200 but got 500\nat line 2"),
+            new Message(null, null, "No type or clip"),
+            new Message("validation-pass", "Checkout/Login", ""),
+            new Message("validation-pass", "Checkout/Login", null));
+        List<Message> second = Arrays.asList(
+            new Message("validation-fail", "Checkout/Login", "Ünïcødé ✓"));
+
+        MessageStore.Writer writer = new MessageStore.Writer(dir);
+        String firstEntry;
+        String secondEntry;
+        String emptyEntry;
+        try {
+            firstEntry = writer.add(first);
+            emptyEntry = writer.add(Collections.<Message>emptyList());
+            secondEntry = writer.add(second);
+        } finally {
+            writer.close();
+        }
+        File file = new File(dir, writer.getFileName());
+        assertTrue(file.exists());
+
+        List<Message> readFirst = MessageStore.read(file, firstEntry);
+        List<Message> readSecond = MessageStore.read(file, secondEntry);
+        assertMessages(first, readFirst);
+        assertMessages(second, readSecond);
+        assertTrue(MessageStore.read(file, emptyEntry).isEmpty());
+
+        // Types and clip paths come back as one (interned) instance each, across test cases.
+        assertSame(readFirst.get(0).getClipName(), readSecond.get(0).getClipName());
+        assertSame(readFirst.get(1).getType(), readSecond.get(0).getType());
+        assertSame("validation-pass", readFirst.get(3).getType());
+    }
+
+    public void testSeveralFilesInOneBuild() throws Exception {
+        List<Message> messages = Arrays.asList(new Message("validation-pass", "A", "first"));
+        MessageStore.Writer first = new MessageStore.Writer(dir);
+        String firstEntry = first.add(messages);
+        first.close();
+        MessageStore.Writer second = new MessageStore.Writer(dir);
+        String secondEntry = second.add(Arrays.asList(new Message("validation-pass", "A", "second")));
+        second.close();
+
+        assertFalse(first.getFileName().equals(second.getFileName()));
+        assertEquals("first", MessageStore.read(new File(dir, first.getFileName()), firstEntry).get(0).getContent());
+        assertEquals("second", MessageStore.read(new File(dir, second.getFileName()), secondEntry).get(0).getContent());
+    }
+
+    public void testNothingWritten() throws Exception {
+        MessageStore.Writer writer = new MessageStore.Writer(dir);
+        writer.close();
+        assertFalse(new File(dir, writer.getFileName()).exists());
+    }
+
+    public void testMissingEntry() throws Exception {
+        MessageStore.Writer writer = new MessageStore.Writer(dir);
+        writer.add(Arrays.asList(new Message("validation-pass", "A", "a")));
+        writer.close();
+        try {
+            MessageStore.read(new File(dir, writer.getFileName()), "42");
+            fail();
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    private static Message untyped(String content) {
+        // As deserialized from a build.xml without a type.
+        Message message = new Message();
+        message.setContent(content);
+        return message;
+    }
+
+    public void testUntypedMessages() throws Exception {
+        JunitResultAction action = new JunitResultAction();
+        action.setMessages(Arrays.asList(
+            new Message("validation-pass", "A", "passed"),
+            untyped("no type"),
+            untyped("no type or clip")));
+
+        // They can be filtered on like any other type, apart from all messages.
+        assertEquals(Arrays.asList("validation-pass", JunitResultAction.NO_TYPE), new ArrayList<String>(action.getMessageTypes()));
+        assertEquals(2, action.getMessageCount(JunitResultAction.NO_TYPE));
+        assertEquals("no type or clip", action.getMessages(1, 1, JunitResultAction.NO_TYPE).get(0).getContent());
+        assertEquals(3, action.getMessageCount(""));
+    }
+
+    /**
+     * A test case's action as saved in build.xml before the messages had a file of their own.
+     */
+    private static final String LEGACY_ACTION =
+        "<com.soasta.jenkins.JunitResultAction>\n"
+        + "  <m__resultID>12345</m__resultID>\n"
+        + "  <m__url>http://cloudtest.example.com/concerto</m__url>\n"
+        + "  <m__isPlayList>false</m__isPlayList>\n"
+        + "  <m__exception></m__exception>\n"
+        + "  <m__messages>\n"
+        + "    <com.soasta.jenkins.Message>\n"
+        + "      <m__type>validation-pass</m__type>\n"
+        + "      <m__clipName>Checkout/Login</m__clipName>\n"
+        + "      <m__content>Logged in</m__content>\n"
+        + "    </com.soasta.jenkins.Message>\n"
+        + "    <com.soasta.jenkins.Message>\n"
+        + "      <m__type>validation-fail</m__type>\n"
+        + "      <m__clipName>Checkout/Cart/Add item</m__clipName>\n"
+        + "      <m__content>Expected 200 &amp; got 500</m__content>\n"
+        + "    </com.soasta.jenkins.Message>\n"
+        + "    <com.soasta.jenkins.Message>\n"
+        + "      <m__type>validation-pass</m__type>\n"
+        + "      <m__clipName>Checkout/Login</m__clipName>\n"
+        + "      <m__content>Still logged in</m__content>\n"
+        + "    </com.soasta.jenkins.Message>\n"
+        + "  </m__messages>\n"
+        + "</com.soasta.jenkins.JunitResultAction>";
+
+    public void testLegacyInlineMessages() throws Exception {
+        XStream2 xstream = new XStream2();
+        JunitResultAction legacy = (JunitResultAction)xstream.fromXML(LEGACY_ACTION);
+
+        // Older builds still show their messages, without a message file.
+        assertNull(legacy.getMessageFile());
+        assertEquals("12345", legacy.getResultID());
+        assertEquals(3, legacy.getMessageCount());
+        assertEquals(2, legacy.getMessageCount("validation-pass"));
+        assertEquals(1, legacy.getMessageCount("validation-fail"));
+        assertEquals(Arrays.asList("validation-pass", "validation-fail"), new ArrayList<String>(legacy.getMessageTypes()));
+        assertEquals("Expected 200 & got 500", legacy.getMessages(1, 1, null).get(0).getContent());
+        assertEquals("Still logged in", legacy.getMessages(1, 10, "validation-pass").get(0).getContent());
+
+        // Deserialized messages share their strings too.
+        List<Message> inline = legacy.getMessages();
+        assertSame(inline.get(0).getClipName(), inline.get(2).getClipName());
+        assertSame("validation-pass", inline.get(0).getType());
+
+        // The same messages survive being moved to a message file.
+        MessageStore.Writer writer = new MessageStore.Writer(dir);
+        String entry;
+        try {
+            entry = writer.add(inline);
+        } finally {
+            writer.close();
+        }
+        assertMessages(inline, MessageStore.read(new File(dir, writer.getFileName()), entry));
+
+        // And the action then saves only where they are.
+        JunitResultAction action = new JunitResultAction();
+        action.setResultID(legacy.getResultID());
+        action.setUrl(legacy.getUrl());
+        action.setStoredMessages(writer.getFileName(), entry, inline.size());
+        String xml = xstream.toXML(action);
+        assertFalse(xml.contains("Logged in"));
+
+        JunitResultAction reloaded = (JunitResultAction)xstream.fromXML(xml);
+        assertEquals(writer.getFileName(), reloaded.getMessageFile());
+        assertEquals(entry, reloaded.getMessageEntry());
+        assertEquals(3, reloaded.getMessageCount());
+    }
+}
@@ -0,0 +1,125 @@
+package com.soasta.jenkins;
+
+import hudson.Util;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+public class SplitBatchOutputTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("batch", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    private Map<String,Long> split(String output, String... compositions) throws IOException {
+        File f = new File(dir, "output.xml");
+        FileUtils.writeStringToFile(f, output, "UTF-8");
+        return new TestCompositionRunner.SplitBatchOutput(Arrays.asList(compositions)).invoke(f, null);
+    }
+
+    private String read(String composition) throws IOException {
+        return FileUtils.readFileToString(new File(dir, TestCompositionRunner.getResultFileName(composition)), "UTF-8");
+    }
+
+    public void testDocumentsBackToBack() throws Exception {
+        Map<String,Long> suites = split(
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<testsuite name=\"A\" time=\"1.5\"><testcase name=\"a1\"/><testcase name=\"a2\"><failure>x</failure></testcase></testsuite>\n"
+            + "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<testsuite name=\"B\"><testcase name=\"b1\"/></testsuite>\n",
+            "/tests/A", "/tests/B");
+
+        assertEquals(Arrays.asList("/tests/A", "/tests/B"), Arrays.asList(suites.keySet().toArray()));
+        assertEquals(1500L, (long)suites.get("/tests/A"));
+        assertEquals(-1L, (long)suites.get("/tests/B"));
+
+        String a = read("/tests/A");
+        assertTrue(a.contains("a1"));
+        assertTrue(a.contains("<failure>x</failure>"));
+        assertFalse(a.contains("b1"));
+        String b = read("/tests/B");
+        assertTrue(b.contains("b1"));
+        assertFalse(b.contains("a1"));
+    }
+
+    public void testWrappedSuitesInAnyOrder() throws Exception {
+        Map<String,Long> suites = split(
+            "<?xml version=\"1.0\"?>\n"
+            + "<testsuites>"
+            + "<testsuite name=\"/tests/B\" time=\"2\"><testcase name=\"b1\"/></testsuite>"
+            + "<testsuite name=\"/tests/A\" time=\"3\"><testcase name=\"a1\"/></testsuite>"
+            + "</testsuites>",
+            "/tests/A", "/tests/B");
+
+        assertEquals(2000L, (long)suites.get("/tests/B"));
+        assertEquals(3000L, (long)suites.get("/tests/A"));
+        assertTrue(read("/tests/A").contains("a1"));
+        assertTrue(read("/tests/B").contains("b1"));
+    }
+
+    public void testUnmatchedSuiteIsNotGuessed() throws Exception {
+        Map<String,Long> suites = split(
+            "<testsuite name=\"Other\"><testcase name=\"o1\"/></testsuite>"
+            + "<testsuite name=\"A\"><testcase name=\"a1\"/></testsuite>",
+            "/tests/A", "/tests/B");
+
+        // Neither "Other" nor the missing B are reported under B.
+        assertEquals(Arrays.asList("/tests/A"), Arrays.asList(suites.keySet().toArray()));
+        assertTrue(read("/tests/A").contains("a1"));
+        assertFalse(read("/tests/A").contains("o1"));
+        assertFalse(new File(dir, TestCompositionRunner.getResultFileName("/tests/B")).exists());
+    }
+
+    public void testMatch() {
+        assertEquals("/tests/A", TestCompositionRunner.SplitBatchOutput.match("/tests/A", Arrays.asList("/tests/A")));
+        assertEquals("/tests/A", TestCompositionRunner.SplitBatchOutput.match("A", Arrays.asList("/tests/AA", "/tests/A")));
+        assertNull(TestCompositionRunner.SplitBatchOutput.match("A", Arrays.asList("/tests/BA")));
+        assertNull(TestCompositionRunner.SplitBatchOutput.match(null, Arrays.asList("/tests/A")));
+    }
+
+    private static String filter(Reader in) throws IOException {
+        Reader r = new TestCompositionRunner.XmlDeclarationFilter(in);
+        StringBuilder b = new StringBuilder();
+        char[] buf = new char[3];
+        int n;
+        while ((n = r.read(buf, 0, buf.length)) >= 0) {
+            b.append(buf, 0, n);
+        }
+        return b.toString();
+    }
+
+    public void testFilterDropsDeclarations() throws Exception {
+        assertEquals("<a/>\n<b/>",
+            filter(new StringReader("<?xml version=\"1.0\"?><a/>\n<?xml version=\"1.0\" encoding=\"UTF-8\"?><b/>")));
+        // Other processing instructions, and a '<' at the very end, are kept.
+        assertEquals("<?xml-stylesheet href=\"x\"?><a/><",
+            filter(new StringReader("<?xml-stylesheet href=\"x\"?><a/><")));
+    }
+
+    public void testFilterWithShortReads() throws Exception {
+        // A reader that returns one character at a time, like a slow pipe can.
+        Reader trickle = new StringReader("<?xml version=\"1.0\"?><a>1</a><?xml version=\"1.0\"?><b/>") {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                return super.read(cbuf, off, Math.min(len, 1));
+            }
+        };
+        assertEquals("<a>1</a><b/>", filter(trickle));
+    }
+}
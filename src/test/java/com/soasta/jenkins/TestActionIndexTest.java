@@ -0,0 +1,92 @@
+package com.soasta.jenkins;
+
+import hudson.Util;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TestActionIndexTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("build", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    private static JunitResultAction action(String resultID, String exception, String messageEntry, int messageCount) {
+        JunitResultAction a = new JunitResultAction();
+        a.setResultID(resultID);
+        a.setUrl("http://cloudtest/concerto/" + resultID);
+        a.setPlayList(messageEntry == null);
+        a.setExceptionMessage(exception);
+        if (messageEntry != null) {
+            a.setStoredMessages("cloudtest-messages.zip", messageEntry, messageCount);
+        }
+        return a;
+    }
+
+    public void testRoundTrip() throws Exception {
+        Map<String,JunitResultAction> actions = new HashMap<String,JunitResultAction>();
+        actions.put("junit/pkg/B/case", action("2", "Boom", "m2", 7));
+        actions.put("junit/pkg/A/case", action("1", "", null, 0));
+        actions.put("junit/pkg/C/caseé", action("3", "", "m3", 1));
+
+        String name = TestActionIndex.write(dir, actions);
+        TestActionIndex index = TestActionIndex.load(dir, name);
+        assertEquals(3, index.size());
+
+        for (Map.Entry<String,JunitResultAction> e : actions.entrySet()) {
+            JunitResultAction expected = e.getValue();
+            JunitResultAction actual = index.get(e.getKey());
+            assertNotNull(actual);
+            assertEquals(expected.getResultID(), actual.getResultID());
+            assertEquals(expected.getUrl(), actual.getUrl());
+            assertEquals(expected.isPlayList(), actual.isPlayList());
+            assertEquals(expected.getExceptionMessage(), actual.getExceptionMessage());
+            assertEquals(expected.getMessageFile(), actual.getMessageFile());
+            assertEquals(expected.getMessageEntry(), actual.getMessageEntry());
+            assertEquals(expected.getMessageCount(), actual.getMessageCount());
+            // Read once, then kept.
+            assertSame(actual, index.get(e.getKey()));
+        }
+    }
+
+    public void testMissingKeys() throws Exception {
+        Map<String,JunitResultAction> actions = new HashMap<String,JunitResultAction>();
+        actions.put("b", action("1", "", null, 0));
+        actions.put("d", action("2", "", null, 0));
+        TestActionIndex index = TestActionIndex.load(dir, TestActionIndex.write(dir, actions));
+
+        // Before the first, between, and after the last.
+        assertNull(index.get("a"));
+        assertNull(index.get("c"));
+        assertNull(index.get("e"));
+        assertNull(index.get(""));
+        assertEquals("2", index.get("d").getResultID());
+    }
+
+    public void testEmptyIndex() throws Exception {
+        String name = TestActionIndex.write(dir, Collections.<String,JunitResultAction>emptyMap());
+        TestActionIndex index = TestActionIndex.load(dir, name);
+        assertEquals(0, index.size());
+        assertNull(index.get("junit/pkg/A/case"));
+    }
+
+    public void testSeveralIndexesInOneBuild() throws Exception {
+        String first = TestActionIndex.write(dir, Collections.singletonMap("a", action("1", "", null, 0)));
+        String second = TestActionIndex.write(dir, Collections.singletonMap("a", action("2", "", null, 0)));
+        assertFalse(first.equals(second));
+        assertEquals("1", TestActionIndex.load(dir, first).get("a").getResultID());
+        assertEquals("2", TestActionIndex.load(dir, second).get("a").getResultID());
+    }
+}
@@ -0,0 +1,133 @@
+package com.soasta.jenkins.cloud;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import org.jvnet.hudson.test.HudsonTestCase;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.soasta.jenkins.cloud.build.AwaitCloudResource;
+
+public class AwaitCloudResourceTest extends HudsonTestCase {
+    /**
+     * An SCommand process that has already finished.
+     */
+    private static class FinishedProc extends Proc {
+        @Override
+        public boolean isAlive() {
+            return false;
+        }
+
+        @Override
+        public void kill() {
+        }
+
+        @Override
+        public int join() {
+            return 0;
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return null;
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return null;
+        }
+    }
+
+    /**
+     * Does what a start step with "don't wait" does, with SCommand's output already written.
+     */
+    private static class StartInBackground extends TestBuilder {
+        private final String name;
+        private final String output;
+
+        StartInBackground(String name, String output) {
+            this.name = name;
+            this.output = output;
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+            String resultFile = ".start-grid/" + name + ".xml";
+            FilePath xml = build.getWorkspace().child(resultFile);
+            xml.getParent().mkdirs();
+            xml.write(output, "UTF-8");
+            build.addAction(new PendingCloudResource("http://cloudtest.example.com/concerto", "id", "start-grid", name, 600,
+                CloudStatus.READY, resultFile, xml, new FinishedProc(), new ByteArrayOutputStream()));
+            return true;
+        }
+    }
+
+    private static String status(String status) {
+        return "<Grid><Name>Grid</Name><Status>" + status + "</Status></Grid>";
+    }
+
+    public void testReady() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        p.getBuildersList().add(new StartInBackground("A", status("READY")));
+        p.getBuildersList().add(new StartInBackground("B", status("READY")));
+        p.getBuildersList().add(new AwaitCloudResource("A"));
+        p.getBuildersList().add(new AwaitCloudResource(null));
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0));
+
+        for (PendingCloudResource resource : b.getActions(PendingCloudResource.class)) {
+            assertTrue(resource.isDone());
+            assertEquals(CloudStatus.READY, resource.getStatus());
+        }
+        assertLogContains("start-grid A: READY", b);
+        assertLogContains("start-grid B: READY", b);
+    }
+
+    public void testNotReady() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        p.getBuildersList().add(new StartInBackground("A", status("FAILED")));
+        p.getBuildersList().add(new AwaitCloudResource("A"));
+        FreeStyleBuild b = assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+
+        PendingCloudResource resource = b.getAction(PendingCloudResource.class);
+        assertTrue(resource.isDone());
+        assertEquals(CloudStatus.FAILED, resource.getStatus());
+        assertLogContains("start-grid A did not end up READY", b);
+    }
+
+    public void testNoStatus() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        p.getBuildersList().add(new StartInBackground("A", "Error: could not connect"));
+        p.getBuildersList().add(new AwaitCloudResource(null));
+        FreeStyleBuild b = assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+        assertNull(b.getAction(PendingCloudResource.class).getStatus());
+    }
+
+    public void testNothingToAwait() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        p.getBuildersList().add(new AwaitCloudResource(null));
+        assertLogContains("Nothing was started in the background.",
+            assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get()));
+
+        // Started, but under another name.
+        p.getBuildersList().clear();
+        p.getBuildersList().add(new StartInBackground("A", status("READY")));
+        p.getBuildersList().add(new AwaitCloudResource("B"));
+        assertLogContains("B wasn't started in the background.",
+            assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get()));
+    }
+}
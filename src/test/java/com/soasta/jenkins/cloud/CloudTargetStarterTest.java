@@ -0,0 +1,63 @@
+package com.soasta.jenkins.cloud;
+
+import hudson.FilePath;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+
+public class CloudTargetStarterTest extends TestCase {
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("start-grid", ".xml");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private CloudStatus readStatus(String output) throws Exception {
+        FileUtils.writeStringToFile(file, output, "UTF-8");
+        return CloudTargetStarter.readStatus(new FilePath(file));
+    }
+
+    public void testReady() throws Exception {
+        assertEquals(CloudStatus.READY, readStatus(
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Grid><Name>Grid A</Name><Status> READY\n</Status></Grid>"));
+    }
+
+    public void testNotReady() throws Exception {
+        assertEquals(CloudStatus.FAILED, readStatus("<Grid><Status>FAILED</Status></Grid>"));
+        assertEquals(CloudStatus.TERMINATED, readStatus("<RSDB><Status>TERMINATED</Status></RSDB>"));
+        // A status we don't know of.
+        assertNull(readStatus("<Grid><Status>PROVISIONING</Status></Grid>"));
+        // No status at all.
+        assertNull(readStatus("<Grid><Name>Grid A</Name></Grid>"));
+    }
+
+    public void testNoOutput() throws Exception {
+        assertNull(readStatus(""));
+        file.delete();
+        assertNull(CloudTargetStarter.readStatus(new FilePath(file)));
+    }
+
+    public void testNotXml() throws Exception {
+        assertNull(readStatus("Error: could not connect to http://cloudtest.example.com/concerto"));
+        assertNull(readStatus("<Grid><Status>READY</Status>"));
+    }
+
+    public void testFindDuplicate() {
+        CloudTarget grid = new CloudTarget(CloudTarget.Type.GRID, "A");
+        CloudTarget rsdb = new CloudTarget(CloudTarget.Type.RSDB, "A");
+        CloudTarget other = new CloudTarget(CloudTarget.Type.GRID, "B");
+        // The same name is fine for different types, since they write to different directories.
+        assertNull(CloudTargetStarter.findDuplicate(Arrays.asList(grid, rsdb, other)));
+        assertEquals(grid.toString(), CloudTargetStarter.findDuplicate(
+            Arrays.asList(grid, rsdb, new CloudTarget(CloudTarget.Type.GRID, "A"))));
+    }
+}